@@ -0,0 +1,680 @@
+import ievents.DcOS;
+import ievents.IEventStore;
+import ievents.MultiResolutionSeasonality;
+import market.TickHandler;
+import market.TickRing;
+import tools.CheckpointDriver;
+import tools.AdaptiveThetaTime;
+import tools.Checkpointable;
+import tools.ClassicVolatilitySeasonality;
+import tools.GBM;
+import tools.IngestionPipeline;
+import tools.MappedTickReader;
+import tools.ParallelGzip;
+import tools.TickFilter;
+import tools.TickParser;
+import tools.Tools;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.lang.management.ManagementFactory;
+import java.util.Random;
+
+/**
+ * Created by author.
+ * Self-checks of the optimized code paths. Unlike Tests, which runs experiments on local data files, every check here
+ * generates its own prices, compares the fast version of the code with the simple one and says if they agree:
+ *
+ *  java -cp out:joda-time-2.9.7.jar Checks
+ *  java -cp out:joda-time-2.9.7.jar Checks EURUSD_UTC_Ticks_Bid_2011-01-01_2016-01-01.csv 5
+ *
+ * With a tick file (gzipped or not, the layout of the Dukascopy files used in Tests: time, ask, bid) and its number of
+ * decimals the checks which compare DcOS with the log formula are also run on the real prices. The program exits with
+ * the status 1 if any check fails.
+ */
+public class Checks {
+
+    private static final double[] THRESHOLDS = {0.00005, 0.0001, 0.000392, 0.001, 0.0037, 0.01, 0.05};
+
+    private final String tickFileName; // null if only generated prices are used
+    private final int nDecimals;
+    private int numFailed;
+
+    public Checks(String tickFileName, int nDecimals){
+        this.tickFileName = tickFileName;
+        this.nDecimals = nDecimals;
+    }
+
+    public static void main(String[] args){
+        Checks checks = args.length >= 2 ? new Checks(args[0], Integer.parseInt(args[1])) : new Checks(null, 0);
+        checks.run();
+        System.exit(checks.numFailed == 0 ? 0 : 1);
+    }
+
+    public void run(){
+        checkRunAllocatesNothing();
+        checkTriggersAgainstLog();
+        checkEventStoreReplay();
+        checkFilterInFileOrder();
+        checkCheckpointResume();
+        checkPipelineStreamsIndependent();
+        checkClassicSeasonalityAroundDst();
+        checkAdaptiveThetaTimeAgainstRebuild();
+    }
+
+    private void report(String name, boolean passed, String details){
+        System.out.println((passed ? "OK     " : "FAILED ") + name + ": " + details);
+        if (!passed){
+            numFailed++;
+        }
+    }
+
+    /**
+     * DcOS.run(bid, ask, time) should not allocate anything per tick. The allocated bytes of the thread are measured by
+     * the ThreadMXBean of HotSpot, the check is skipped on other JVMs.
+     */
+    private void checkRunAllocatesNothing(){
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (!(bean instanceof com.sun.management.ThreadMXBean)){
+            System.out.println("SKIPPED DcOS.run allocation: no com.sun.management.ThreadMXBean");
+            return;
+        }
+        com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) bean;
+        int numTicks = 1000000;
+        long[] prices = new long[numTicks];
+        Random random = new Random(1);
+        long price = 130000;
+        for (int i = 0; i < numTicks; i++){
+            price += random.nextInt(21) - 10;
+            prices[i] = price;
+        }
+        DcOS relative = new DcOS(0.001, 0.001, 1, 0.001, 0.001, true);
+        DcOS absolute = new DcOS(100, 100, 1, 100, 100, false);
+        long numEvents = 0;
+        for (int round = 0; round < 5; round++){ // warm-up, so that the measured loop is compiled
+            for (int i = 0; i < numTicks; i++){
+                numEvents += relative.run(prices[i], prices[i] + 2, i) & 1;
+                numEvents += absolute.run(prices[i], prices[i] + 2, i) & 1;
+            }
+        }
+        long threadId = Thread.currentThread().getId();
+        long bytesBefore = threadBean.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < numTicks; i++){
+            numEvents += relative.run(prices[i], prices[i] + 2, i) & 1;
+            numEvents += absolute.run(prices[i], prices[i] + 2, i) & 1;
+        }
+        long allocated = threadBean.getThreadAllocatedBytes(threadId) - bytesBefore;
+        report("DcOS.run allocation", allocated == 0, allocated + " bytes for " + 2 * numTicks + " ticks (" + numEvents + " DC IEs)");
+    }
+
+    /**
+     * DcOS.runRelative compares a tick with cached trigger prices and uses the log formula only inside a tiny guard
+     * band around them. The sequence of events and the state after every tick should be exactly the ones of the
+     * original version which computes the logarithms for every tick (LogDcOS below). Compared on GBM paths at several
+     * scales of prices, on walks which jump to the integers around the trigger prices (the cases the guard band is for)
+     * and on the tick file if one is given.
+     */
+    private void checkTriggersAgainstLog(){
+        long numEvents = 0, numMismatches = 0;
+        long[] scales = {1000L, 100000L, 1000000000L, 100000000000L};
+        for (long scale : scales){
+            for (double threshold : THRESHOLDS){
+                for (int mode : new int[]{1, -1}){
+                    DcOS fast = new DcOS(threshold, threshold * 1.3, mode, threshold * 0.7, threshold, true);
+                    LogDcOS slow = new LogDcOS(threshold, threshold * 1.3, mode, threshold * 0.7, threshold);
+                    GBM gbm = new GBM(1.3f, 0.2f, 1.0f, 2000000, 0.05f);
+                    for (int i = 0; i < 200000; i++){
+                        long bid = (long) (gbm.generateNextValue() * scale);
+                        numMismatches += compare(fast, slow, bid, bid + i % 3, i);
+                    }
+                    numEvents += slow.numEvents;
+                }
+            }
+        }
+        Random random = new Random(7);
+        for (double threshold : THRESHOLDS){
+            for (long scale : new long[]{1000L, 1000000L}){
+                DcOS fast = new DcOS(threshold, threshold, 1, threshold, threshold, true);
+                LogDcOS slow = new LogDcOS(threshold, threshold, 1, threshold, threshold);
+                long price = scale;
+                for (int i = 0; i < 500000; i++){
+                    if (slow.initialized && random.nextInt(4) == 0){ // next to the trigger of the next DC or OS IE
+                        double trigger = random.nextBoolean() ? slow.dcTrigger() : slow.osTrigger();
+                        price = Math.max(1, Math.round(trigger) + random.nextInt(3) - 1);
+                    } else {
+                        price = Math.max(1, price + random.nextInt(3) - 1);
+                    }
+                    numMismatches += compare(fast, slow, price, price, i);
+                }
+                numEvents += slow.numEvents;
+            }
+        }
+        String data = "GBM and trigger walks";
+        if (tickFileName != null){
+            DcOS[] fast = new DcOS[THRESHOLDS.length];
+            LogDcOS[] slow = new LogDcOS[THRESHOLDS.length];
+            for (int k = 0; k < THRESHOLDS.length; k++){
+                fast[k] = new DcOS(THRESHOLDS[k], THRESHOLDS[k], 1, THRESHOLDS[k], THRESHOLDS[k], true);
+                slow[k] = new LogDcOS(THRESHOLDS[k], THRESHOLDS[k], 1, THRESHOLDS[k], THRESHOLDS[k]);
+            }
+            long[] fileMismatches = new long[1];
+            TickParser parser = new TickParser(",", nDecimals, "yyyy.MM.dd HH:mm:ss.SSS", 1, 2, 0);
+            try (InputStream in = Tools.openTickStream(tickFileName)) {
+                parser.parse(in, (bid, ask, time) -> {
+                    for (int k = 0; k < THRESHOLDS.length; k++){
+                        fileMismatches[0] += compare(fast[k], slow[k], bid, ask, time);
+                    }
+                });
+            } catch (IOException ex){
+                report("DcOS triggers vs log", false, "cannot read " + tickFileName + ": " + ex);
+                return;
+            }
+            numMismatches += fileMismatches[0];
+            for (LogDcOS instance : slow){
+                numEvents += instance.numEvents;
+            }
+            data += " and " + tickFileName;
+        }
+        report("DcOS triggers vs log", numMismatches == 0, numMismatches + " mismatches in " + numEvents + " events (" + data + ")");
+    }
+
+    /**
+     * Runs both instances on a tick.
+     * @return 1 if they give another event or another state, 0 otherwise
+     */
+    private static int compare(DcOS fast, LogDcOS slow, long bid, long ask, long time){
+        int fastEvent = fast.run(bid, ask, time);
+        int slowEvent = slow.run(bid, ask, time);
+        boolean same = fastEvent == slowEvent && fast.getExtreme() == slow.extreme && fast.getReference() == slow.reference
+                && fast.getOsL() == slow.osL && fast.gettOS() == slow.tOS && fast.gettExtreme() == slow.tExtreme
+                && fast.getMode() == slow.mode;
+        return same ? 0 : 1;
+    }
+
+    /**
+     * The relative version of DcOS as it was before the trigger prices: the moves are computed by Math.log for every
+     * tick. Kept only as the reference for checkTriggersAgainstLog.
+     */
+    private static class LogDcOS {
+
+        private final double thresholdUp, thresholdDown, osSizeUp, osSizeDown;
+        private long extreme, reference, latestDCprice;
+        private int mode;
+        private boolean initialized;
+        private double osL;
+        private long tOS, tExtreme;
+        private long numEvents;
+
+        LogDcOS(double thresholdUp, double thresholdDown, int initialMode, double osSizeUp, double osSizeDown){
+            this.thresholdUp = thresholdUp;
+            this.thresholdDown = thresholdDown;
+            this.mode = initialMode;
+            this.osSizeUp = osSizeUp;
+            this.osSizeDown = osSizeDown;
+        }
+
+        int run(long bid, long ask, long time){
+            if (!initialized){
+                initialized = true;
+                extreme = reference = latestDCprice = (mode == 1 ? ask : bid);
+                tOS = tExtreme = time;
+            } else if (mode == 1){
+                if (ask < extreme){
+                    extreme = ask;
+                    tExtreme = time;
+                    if (-Math.log((double) extreme / reference) >= osSizeDown){
+                        reference = extreme;
+                        return -2;
+                    }
+                } else if (Math.log((double) bid / extreme) >= thresholdUp){
+                    osL = -Math.log((double) extreme / latestDCprice);
+                    tOS = tExtreme;
+                    tExtreme = time;
+                    latestDCprice = bid;
+                    extreme = reference = bid;
+                    mode *= -1;
+                    numEvents++;
+                    return 1;
+                }
+            } else {
+                if (bid > extreme){
+                    extreme = bid;
+                    tExtreme = time;
+                    if (Math.log((double) extreme / reference) >= osSizeUp){
+                        reference = extreme;
+                        return 2;
+                    }
+                } else if (-Math.log((double) ask / extreme) >= thresholdDown){
+                    osL = Math.log((double) extreme / latestDCprice);
+                    tOS = tExtreme;
+                    tExtreme = time;
+                    latestDCprice = ask;
+                    extreme = reference = ask;
+                    mode *= -1;
+                    numEvents++;
+                    return -1;
+                }
+            }
+            return 0;
+        }
+
+        /**
+         * @return the price at which the next DC IE happens
+         */
+        double dcTrigger(){
+            return mode == 1 ? extreme * Math.exp(thresholdUp) : extreme / Math.exp(thresholdDown);
+        }
+
+        /**
+         * @return the extreme at which the next OS IE happens
+         */
+        double osTrigger(){
+            return mode == 1 ? reference / Math.exp(osSizeDown) : reference * Math.exp(osSizeUp);
+        }
+    }
+
+    /**
+     * Replaying the events of an IEventStore should give exactly what running DcOS on the ticks gives, also for
+     * asymmetric thresholds (the variability of overshoots uses the threshold of the mode after the DC IE). A store
+     * built from the ticks of a parser with a filter should not be used for a parser without it.
+     */
+    private void checkEventStoreReplay(){
+        File cacheDir = null;
+        try {
+            cacheDir = Files.createTempDirectory("checks").toFile();
+            File tickFile = new File(cacheDir, "gbm.csv");
+            GBM gbm = new GBM(1.3f, 0.2f, 1.0f, 2000000, 0.05f);
+            try (PrintWriter writer = new PrintWriter(tickFile, "UTF-8")) {
+                writer.println("time,ask,bid");
+                for (int i = 0; i < 300000; i++){
+                    long bid = (long) (gbm.generateNextValue() * 100000);
+                    writer.println(i + "," + (bid + 2) + "," + bid);
+                }
+            }
+            TickParser parser = new TickParser(",", 0, "", 1, 2, 0); // the time in seconds, integer prices
+            DcOS run = new DcOS(0.001, 0.0017, 1, 0.0007, 0.001, true);
+            double[] runSum = new double[1];
+            long[] runEvents = new long[1];
+            try (InputStream in = Tools.openTickStream(tickFile.getPath())) {
+                new TickParser(parser).parse(in, (bid, ask, time) -> {
+                    int event = run.run(bid, ask, time);
+                    if (event == 1 || event == -1){
+                        runSum[0] += run.computeSqrtOsDeviation();
+                        runEvents[0]++;
+                    }
+                });
+            }
+            IEventStore store = IEventStore.openOrBuild(cacheDir.getPath(), tickFile.getPath(), parser,
+                    new DcOS(0.001, 0.0017, 1, 0.0007, 0.001, true));
+            double[] replaySum = new double[1];
+            long[] replayEvents = new long[1];
+            store.replay((type, time, price, extreme, tExtreme, osL, prevDcTime) -> {
+                if (type == 1 || type == -1){
+                    replaySum[0] += store.computeSqrtOsDeviation(type, osL);
+                    replayEvents[0]++;
+                }
+            });
+            report("IEventStore replay vs run", replaySum[0] == runSum[0] && replayEvents[0] == runEvents[0],
+                    replayEvents[0] + "/" + runEvents[0] + " DC IEs, sum of the variability of overshoots " + replaySum[0] + "/" + runSum[0]);
+            TickParser filteredParser = new TickParser(parser).setFilter(new TickFilter().setSpikeFilter(0.01, 1000));
+            IEventStore filteredStore = IEventStore.openOrBuild(cacheDir.getPath(), tickFile.getPath(), filteredParser,
+                    new DcOS(0.001, 0.0017, 1, 0.0007, 0.001, true));
+            boolean separate = !filteredStore.matches(parser) && store.matches(parser) && filteredStore.matches(filteredParser);
+            report("IEventStore parser key", separate, "a store of a filtered parser is " + (separate ? "not " : "") + "used without the filter");
+            MultiResolutionSeasonality replayed = new MultiResolutionSeasonality(0.001, 600000L);
+            replayed.replay(IEventStore.openOrBuild(cacheDir.getPath(), tickFile.getPath(), parser, new DcOS(0.001, 0.001, 1, 0.001, 0.001, true)));
+            MultiResolutionSeasonality ran = new MultiResolutionSeasonality(0.001, 600000L);
+            try (InputStream in = Tools.openTickStream(tickFile.getPath())) {
+                new TickParser(parser).parse(in, ran::run);
+            }
+            boolean sameState = Arrays.equals(stateOf(replayed), stateOf(ran));
+            for (int i = 300000; i < 400000; i++){ // newer ticks after the data set
+                long bid = (long) (gbm.generateNextValue() * 100000);
+                replayed.run(bid, bid + 2, i * 1000L);
+                ran.run(bid, bid + 2, i * 1000L);
+            }
+            boolean sameAfter = Arrays.equals(stateOf(replayed), stateOf(ran));
+            report("IEventStore replay then run", sameState && sameAfter, (sameState ? "same" : "different")
+                    + " state as the run after the replay, " + (sameAfter ? "same" : "different") + " after 100000 newer ticks");
+        } catch (IOException ex){
+            report("IEventStore replay vs run", false, ex.toString());
+        } finally {
+            if (cacheDir != null){
+                File[] files = cacheDir.listFiles();
+                for (File file : files == null ? new File[0] : files){
+                    file.delete();
+                }
+                cacheDir.delete();
+            }
+        }
+    }
+
+    /**
+     * MappedTickReader with a TickFilter gives the same ticks as TickParser.parse for any size of chunk. The generated
+     * ticks have several quotes per timestamp, spikes, crossed quotes and zero prices.
+     */
+    private void checkFilterInFileOrder(){
+        File tickFile = null;
+        try {
+            tickFile = File.createTempFile("checks", ".csv");
+            Random random = new Random(11);
+            GBM gbm = new GBM(1.3f, 0.2f, 1.0f, 2000000, 0.05f);
+            try (PrintWriter writer = new PrintWriter(tickFile, "UTF-8")) {
+                writer.println("time,ask,bid");
+                for (int i = 0; i < 100000; i++){
+                    long bid = (long) (gbm.generateNextValue() * 100000);
+                    long ask = bid + 2;
+                    double dice = random.nextDouble();
+                    long time = 2 * i;
+                    if (dice < 0.01){
+                        writer.println(time + "," + bid + "," + ask);
+                    } else if (dice < 0.02){
+                        writer.println(time + "," + ask + ",0");
+                    } else if (dice < 0.1){
+                        writer.println(time + "," + (ask + 1) + "," + (bid + 1));
+                    }
+                    writer.println(time + "," + ask + "," + bid);
+                    if (dice > 0.99){ // a spike between two quotes
+                        writer.println((time + 1) + "," + ask * 105 / 100 + "," + bid * 105 / 100);
+                    }
+                }
+            }
+            TickParser parser = new TickParser(",", 0, "", 1, 2, 0).setFilter(new TickFilter().setSpikeFilter(0.01, 1000));
+            List<String> streamed = new ArrayList<>();
+            try (InputStream in = Tools.openTickStream(tickFile.getPath())) {
+                new TickParser(parser).parse(in, (bid, ask, time) -> streamed.add(bid + "," + ask + "," + time));
+            }
+            String details = streamed.size() + " ticks";
+            boolean same = true;
+            for (int chunkSize : new int[]{64, 4096, 1 << 20}){
+                List<String> mapped = new ArrayList<>();
+                MappedTickReader reader = new MappedTickReader(parser, 4, chunkSize);
+                reader.read(tickFile.getPath(), (bid, ask, time) -> mapped.add(bid + "," + ask + "," + time));
+                if (!mapped.equals(streamed)){
+                    same = false;
+                    details += ", " + mapped.size() + " with chunks of " + chunkSize + " bytes";
+                }
+            }
+            report("MappedTickReader filter vs TickParser.parse", same, details);
+        } catch (IOException ex){
+            report("MappedTickReader filter vs TickParser.parse", false, ex.toString());
+        } finally {
+            if (tickFile != null){
+                tickFile.delete();
+            }
+        }
+    }
+
+    /**
+     * A run of CheckpointDriver killed in the middle and started again ends with the same results as an uninterrupted
+     * run, for a plain and a gzipped file. The ticks have one or two quotes per timestamp and spikes, so the filter holds a
+     * tick back at the moment of every checkpoint.
+     */
+    private void checkCheckpointResume(){
+        File dir = null;
+        try {
+            dir = Files.createTempDirectory("checks").toFile();
+            File tickFile = new File(dir, "gbm.csv");
+            GBM gbm = new GBM(1.3f, 0.2f, 1.0f, 2000000, 0.05f);
+            try (PrintWriter writer = new PrintWriter(tickFile, "UTF-8")) {
+                writer.println("time,ask,bid");
+                for (int i = 0; i < 300000; i++){
+                    long bid = (long) (gbm.generateNextValue() * 100000);
+                    if (i % 1000 == 999){
+                        bid = bid * 11 / 10;
+                    }
+                    writer.println((i * 2 / 3) * 20 + "," + (bid + 2) + "," + bid); // one or two quotes per timestamp
+                }
+            }
+            ParallelGzip.compress(tickFile.getPath(), tickFile.getPath() + ".gz", 1 << 16);
+            TickParser parser = new TickParser(",", 0, "", 1, 2, 0).setFilter(new TickFilter().setSpikeFilter(0.05, 60000));
+            String checkpointFileName = new File(dir, "run.ckp").getPath();
+            for (String fileName : new String[]{tickFile.getPath(), tickFile.getPath() + ".gz"}){
+                MultiResolutionSeasonality whole = new MultiResolutionSeasonality(0.001, 600000L);
+                TickDigest wholeDigest = new TickDigest();
+                long numWhole = new CheckpointDriver(parser, checkpointFileName, 7777).run(fileName, (bid, ask, time) -> {
+                    whole.run(bid, ask, time);
+                    wholeDigest.onTick(bid, ask, time);
+                }, whole, wholeDigest);
+                MultiResolutionSeasonality killed = new MultiResolutionSeasonality(0.001, 600000L);
+                TickDigest killedDigest = new TickDigest();
+                long[] numSeen = new long[1];
+                boolean wasKilled = false;
+                try {
+                    new CheckpointDriver(parser, checkpointFileName, 7777).run(fileName, (bid, ask, time) -> {
+                        if (++numSeen[0] == 123457){
+                            throw new IllegalStateException("killed");
+                        }
+                        killed.run(bid, ask, time);
+                        killedDigest.onTick(bid, ask, time);
+                    }, killed, killedDigest);
+                } catch (IllegalStateException ex){
+                    wasKilled = true;
+                }
+                MultiResolutionSeasonality resumed = new MultiResolutionSeasonality(0.001, 600000L);
+                TickDigest resumedDigest = new TickDigest();
+                CheckpointDriver driver = new CheckpointDriver(parser, checkpointFileName, 7777);
+                long numResumed = driver.run(fileName, (bid, ask, time) -> {
+                    resumed.run(bid, ask, time);
+                    resumedDigest.onTick(bid, ask, time);
+                }, resumed, resumedDigest);
+                boolean same = wasKilled && driver.isResumed() && numResumed == numWhole
+                        && resumedDigest.numTicks == wholeDigest.numTicks && resumedDigest.hash == wholeDigest.hash
+                        && Arrays.equals(whole.instantaneousVolatility(600000L), resumed.instantaneousVolatility(600000L))
+                        && Arrays.equals(whole.realizedVolatility(600000L), resumed.realizedVolatility(600000L))
+                        && !new File(checkpointFileName).exists();
+                report("CheckpointDriver kill and resume", same, numResumed + "/" + numWhole + " ticks of "
+                        + new File(fileName).getName() + (driver.isResumed() ? ", resumed" : ", not resumed"));
+            }
+        } catch (IOException ex){
+            report("CheckpointDriver kill and resume", false, ex.toString());
+        } finally {
+            if (dir != null){
+                File[] files = dir.listFiles();
+                for (File file : files == null ? new File[0] : files){
+                    file.delete();
+                }
+                dir.delete();
+            }
+        }
+    }
+
+    /**
+     * A second stream run through the same IngestionPipeline gives the same ticks and counters as through a new one:
+     * the filter does not compare its first ticks with the last ones of the first stream.
+     */
+    private void checkPipelineStreamsIndependent(){
+        StringBuilder first = new StringBuilder("time,ask,bid\n");
+        StringBuilder second = new StringBuilder("time,ask,bid\n");
+        for (int i = 0; i < 1000; i++){
+            first.append(i).append(",100002,100000\n");
+        }
+        second.append(999).append(",100002,100000\n"); // the same as the last tick of the first stream
+        for (int i = 1000; i < 2000; i++){
+            second.append(i).append(",110002,110000\n"); // a jump from the level of the first stream
+        }
+        TickParser parser = new TickParser(",", 0, "", 1, 2, 0).setFilter(new TickFilter().setSpikeFilter(0.05, 60000));
+        try {
+            IngestionPipeline reused = new IngestionPipeline(parser, 1 << 10, TickRing.WaitStrategy.YIELD);
+            reused.run(new ByteArrayInputStream(first.toString().getBytes(StandardCharsets.US_ASCII)), (bid, ask, time) -> {});
+            List<String> afterFirst = new ArrayList<>();
+            reused.run(new ByteArrayInputStream(second.toString().getBytes(StandardCharsets.US_ASCII)),
+                    (bid, ask, time) -> afterFirst.add(bid + "," + ask + "," + time));
+            IngestionPipeline fresh = new IngestionPipeline(parser, 1 << 10, TickRing.WaitStrategy.YIELD);
+            List<String> alone = new ArrayList<>();
+            fresh.run(new ByteArrayInputStream(second.toString().getBytes(StandardCharsets.US_ASCII)),
+                    (bid, ask, time) -> alone.add(bid + "," + ask + "," + time));
+            boolean same = afterFirst.equals(alone) && reused.getNumSkipped() == fresh.getNumSkipped()
+                    && reused.getFilter().getNumAccepted() == fresh.getFilter().getNumAccepted()
+                    && reused.getFilter().getNumRejected() == fresh.getFilter().getNumRejected();
+            report("IngestionPipeline second stream", same, afterFirst.size() + "/" + alone.size() + " ticks, "
+                    + reused.getFilter().getNumRejected() + "/" + fresh.getFilter().getNumRejected() + " rejected");
+        } catch (IOException ex){
+            report("IngestionPipeline second stream", false, ex.toString());
+        }
+    }
+
+    /**
+     * ClassicVolatilitySeasonality over two weeks in New York, the second one with the spring-forward transition: the
+     * bins of the skipped hour (Sunday 02:00 - 03:00) have half of the usual length on average, so at most one return
+     * with 2-minute bins and none at all with 1-minute bins. Every bin should be finite and the skipped ones 0.
+     */
+    private void checkClassicSeasonalityAroundDst(){
+        DateTimeZone zone = DateTimeZone.forID("America/New_York");
+        long from = new DateTime(2021, 3, 1, 0, 0, zone).getMillis(); // Monday, the transition is on Sunday 14 March
+        long to = new DateTime(2021, 3, 15, 0, 0, zone).getMillis();
+        StringBuilder details = new StringBuilder();
+        boolean passed = true;
+        for (int numMinutes = 1; numMinutes <= 2; numMinutes++){
+            ClassicVolatilitySeasonality seasonality = new ClassicVolatilitySeasonality(numMinutes * 60000L);
+            seasonality.setTimeZone(zone);
+            Random random = new Random(numMinutes);
+            long open = 110000;
+            for (long time = from; time < to; time += 60000L){ // one-minute bars: open in bid, close in ask
+                long close = open + random.nextInt(21) - 10;
+                seasonality.run(open, close, time);
+                open = close;
+            }
+            double[] volatility = seasonality.finish();
+            int numNotFinite = 0, numSkippedNotZero = 0, numPositive = 0;
+            int skippedFrom = (6 * 1440 + 120) / numMinutes, skippedTo = (6 * 1440 + 180) / numMinutes;
+            for (int bin = 0; bin < volatility.length; bin++){
+                if (Double.isNaN(volatility[bin]) || Double.isInfinite(volatility[bin])){
+                    numNotFinite++;
+                } else if (bin >= skippedFrom && bin < skippedTo && volatility[bin] != 0){
+                    numSkippedNotZero++;
+                } else if (volatility[bin] > 0){
+                    numPositive++;
+                }
+            }
+            int numExpectedPositive = numMinutes == 1 ? 0 : volatility.length - (skippedTo - skippedFrom); // one return per bin gives 0
+            passed &= numNotFinite == 0 && numSkippedNotZero == 0 && numPositive == numExpectedPositive;
+            details.append(details.length() == 0 ? "" : ", ").append(numMinutes).append("-minute bins: ").append(numNotFinite)
+                    .append(" not finite, ").append(numSkippedNotZero).append(" skipped not 0, ").append(numPositive).append(" positive");
+        }
+        report("ClassicVolatilitySeasonality around DST", passed, details.toString());
+    }
+
+    /**
+     * AdaptiveThetaTime.publish moves only the boundaries whose share left their activity bin. Its timestamps should be
+     * the ones of a full pass over the cumulative activity of the same profile after every publication: events in
+     * bursts of random length and place over 60 days with a half-life of one hour (so the weights are rescaled several
+     * times), published after random numbers of events, and restored from a checkpoint into a new instance halfway.
+     */
+    private void checkAdaptiveThetaTimeAgainstRebuild(){
+        int numActivityBins = 2016, numThetaBins = 100;
+        Random random = new Random(24);
+        double[] initialSeasonality = new double[numActivityBins];
+        for (int i = 0; i < numActivityBins; i++){
+            initialSeasonality[i] = 0.5 + random.nextDouble();
+        }
+        DateTimeZone zone = DateTimeZone.UTC;
+        AdaptiveThetaTime thetaTime = new AdaptiveThetaTime(initialSeasonality, 1000, numThetaBins, 3600000L, 0, zone);
+        long time = new DateTime(2015, 1, 5, 0, 0, zone).getMillis();
+        long end = time + 60 * 86400000L;
+        long maxDifference = 0, numCrossed = 0, numPublications = 0;
+        boolean restored = false;
+        try {
+            while (time < end){
+                int numEvents = 1 + random.nextInt(random.nextBoolean() ? 5 : 500);
+                long gap = random.nextBoolean() ? 1000 + random.nextInt(60000) : random.nextInt(6 * 3600000); // bursts and jumps
+                for (int i = 0; i < numEvents; i++){
+                    time += random.nextInt((int) (gap / numEvents) + 1);
+                    thetaTime.addEvent(time);
+                }
+                long[] stamps = thetaTime.publish();
+                long[] rebuilt = rebuildThetaTimestamps(thetaTime.getActivityProfile(), numThetaBins);
+                for (int j = 0; j < numThetaBins; j++){
+                    maxDifference = Math.max(maxDifference, Math.abs(stamps[j] - rebuilt[j]));
+                }
+                numCrossed += thetaTime.getNumCrossed();
+                numPublications++;
+                if (!restored && time > end - 30 * 86400000L){
+                    AdaptiveThetaTime copy = new AdaptiveThetaTime(initialSeasonality, 1000, numThetaBins, 3600000L, 0, zone);
+                    copy.readState(new DataInputStream(new ByteArrayInputStream(stateOf(thetaTime))));
+                    thetaTime = copy;
+                    restored = true;
+                }
+            }
+        } catch (IOException ex){
+            report("AdaptiveThetaTime vs full rebuild", false, ex.toString());
+            return;
+        }
+        report("AdaptiveThetaTime vs full rebuild", maxDifference <= 1, "max difference " + maxDifference + " ms in "
+                + numPublications + " publications, " + numCrossed + " of " + numPublications * (numThetaBins - 1)
+                + " boundaries crossed a bin");
+    }
+
+    /**
+     * The theta timestamps of an activity profile by one pass over its cumulative activity, as the old
+     * AdaptiveThetaTime.publish computed them.
+     */
+    private static long[] rebuildThetaTimestamps(double[] profile, int numThetaBins){
+        long lenOfActivityBin = 604800000L / profile.length;
+        double total = 0;
+        for (double activity : profile){
+            total += activity;
+        }
+        long[] stamps = new long[numThetaBins];
+        int position = 0;
+        double before = 0;
+        for (int j = 0; j < numThetaBins - 1; j++){
+            double activity = (j + 1) * total / numThetaBins;
+            while (position < profile.length && before + profile[position] < activity){
+                before += profile[position];
+                position++;
+            }
+            if (position == profile.length){
+                stamps[j] = 604800000L;
+                continue;
+            }
+            double inBin = profile[position] > 0 ? (activity - before) / profile[position] : 0;
+            stamps[j] = (long) (position * lenOfActivityBin + lenOfActivityBin * Math.min(1, Math.max(0, inBin)));
+        }
+        stamps[numThetaBins - 1] = 604800000L;
+        return stamps;
+    }
+
+    private static byte[] stateOf(Checkpointable part) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        part.writeState(new DataOutputStream(bytes));
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Number and hash of the ticks seen in their order, saved with the checkpoints.
+     */
+    private static class TickDigest implements TickHandler, Checkpointable {
+        long numTicks, hash;
+
+        public void onTick(long bid, long ask, long time){
+            numTicks++;
+            hash = 31 * (31 * (31 * hash + bid) + ask) + time;
+        }
+
+        public void writeState(DataOutput out) throws IOException {
+            out.writeLong(numTicks);
+            out.writeLong(hash);
+        }
+
+        public void readState(DataInput in) throws IOException {
+            numTicks = in.readLong();
+            hash = in.readLong();
+        }
+    }
+}
@@ -1,11 +1,18 @@
 import ievents.DcOS;
+import ievents.IEventStore;
 import market.Price;
+import org.joda.time.DateTimeZone;
+import tools.AdaptiveThetaTime;
+import tools.Checkpoint;
+import tools.Checkpointable;
 import tools.ThetaTime;
+import tools.WeekBinCalendar;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.util.ArrayList;
 
-import static tools.Tools.findBinId;
-
 
 /**
  * This class computes number of directional changes in each period of week divided by bins. The bins could be
@@ -21,7 +28,7 @@ import static tools.Tools.findBinId;
  *  choose whether to use the theta time or no.
  */
 
-public class NumDCperPeriod {
+public class NumDCperPeriod implements Checkpointable {
 
     private static final long MLS_WEAK = 604800000L; // number of milliseconds in a week
     private long lenOfBin; // length (in milliseconds) of one bin in physical time
@@ -33,6 +40,10 @@ public class NumDCperPeriod {
     private ArrayList<Integer> binIndexesArray = new ArrayList<>(); // contains indexes of all observed bins
     private ArrayList<Integer> numDCsPerBinArray = new ArrayList<>(); // contains number of DCs in each observed bin
     private long[] timestampsOfBins;
+    private WeekBinCalendar calendar; // finds the bins of the timestamps, null until the timestamps are known
+    private DateTimeZone timeZone = DateTimeZone.getDefault(); // the weeks begin on Monday 00:00 in this time zone
+    private AdaptiveThetaTime adaptiveThetaTime; // online theta time, null if the timestamps of bins are fixed
+    private int adaptiveVersion; // the publication of adaptiveThetaTime the current timestamps come from
     private long prevDCtime; // containss the timestamo of the precious tick. Used to check the distance between two consecutive events
 
 
@@ -46,6 +57,7 @@ public class NumDCperPeriod {
         dCoS = new DcOS(threshold, threshold, 1, threshold, threshold, true);
         if (!thetaTime){
             timestampsOfBins = createTimestampsOfBins(lenOfBin);
+            calendar = new WeekBinCalendar(timestampsOfBins, timeZone);
         }
         firstTick = true;
         numDCinBin = 0;
@@ -58,50 +70,118 @@ public class NumDCperPeriod {
      */
     public void uploadWeeklyActivitySeasonality(double[] weeklyActivitySeasonality){
         timestampsOfBins = ThetaTime.thetaTimestampsFromSeasonalityArray(weeklyActivitySeasonality, numBins);
+        calendar = new WeekBinCalendar(timestampsOfBins, timeZone);
     }
 
 
+    /**
+     * Used instead of uploadWeeklyActivitySeasonality for live data: every DC IE is added to the online activity
+     * profile and the theta bins are replaced every time the profile publishes new timestamps. Its state is saved
+     * with the state of this instance.
+     * @param adaptiveThetaTime should have the same number of theta bins and the same time zone as this instance (see
+     *                          setTimeZone, which should be called first)
+     */
+    public void setAdaptiveThetaTime(AdaptiveThetaTime adaptiveThetaTime){
+        if (adaptiveThetaTime.getNumThetaBins() != numBins){
+            throw new IllegalArgumentException("The adaptive theta time should have " + numBins + " bins");
+        }
+        if (!adaptiveThetaTime.getZone().equals(timeZone)){
+            throw new IllegalArgumentException("The adaptive theta time counts the weeks in " + adaptiveThetaTime.getZone()
+                    + ", this instance in " + timeZone);
+        }
+        this.adaptiveThetaTime = adaptiveThetaTime;
+        useAdaptiveTimestamps();
+    }
+
+    private void useAdaptiveTimestamps(){
+        adaptiveVersion = adaptiveThetaTime.getVersion();
+        timestampsOfBins = adaptiveThetaTime.getTimestampsOfBins();
+        calendar = new WeekBinCalendar(timestampsOfBins, timeZone);
+    }
+
+    /**
+     * Sets the time zone in which the weeks begin (Monday 00:00) and the bins are counted, for example
+     * DateTimeZone.forID("America/New_York"). The default time zone is used otherwise. With an adaptive theta time
+     * the zone should be the one of its weeks.
+     */
+    public void setTimeZone(DateTimeZone zone){
+        if (adaptiveThetaTime != null && !adaptiveThetaTime.getZone().equals(zone)){
+            throw new IllegalArgumentException("The adaptive theta time counts the weeks in " + adaptiveThetaTime.getZone());
+        }
+        timeZone = zone;
+        if (timestampsOfBins != null){
+            calendar = new WeekBinCalendar(timestampsOfBins, zone);
+        }
+    }
+
     /**
      * This method should be called for every new price. It checks whether the algo finds a new DC IE at the given
      * price or not and sums up all intrinsic events found in a bin together.
      * @param aPrice is every new price.
      */
     public void run(Price aPrice){
-        int iEvent = dCoS.run(aPrice);
+        run(aPrice.getBid(), aPrice.getAsk(), aPrice.getTime());
+    }
+
+    public void run(long bid, long ask, long time){
+        int iEvent = dCoS.run(bid, ask, time);
         if (iEvent == 1 || iEvent == -1){
-            long dcTime = aPrice.getTime();
-            if (firstTick){
-                previousBinId = findBinId(dcTime, timestampsOfBins);
-                prevDCtime = aPrice.getTime();
-                firstTick = false;
+            registerDC(time);
+        }
+    }
+
+    /**
+     * Does the same as run for all ticks of a data set, but takes the intrinsic events from a store instead of running
+     * DcOS again. Should be called instead of run, not after it; afterwards DcOS is in its state after the last tick of
+     * the data set, so run can go on with newer ticks and writeState saves a consistent state.
+     * @param store is a store built with the same configuration of DcOS as the one of this instance
+     */
+    public void replay(IEventStore store){
+        store.checkMatches(dCoS);
+        store.replay((type, time, price, extreme, tExtreme, osL, prevDcTime) -> {
+            if (type == 1 || type == -1){
+                registerDC(time);
             }
-            int binId = findBinId(dcTime, timestampsOfBins);
-            if (binId == previousBinId && (dcTime - prevDCtime) < lenOfBin ){ // same bin ID in the same week
-                numDCinBin += 1;
-            } else {
-//                System.out.println((new Date(aPrice.getTime())) + ", " + (previousBinId) + ", " + numDCinBin);
-                binIndexesArray.add(previousBinId);
-                numDCsPerBinArray.add(numDCinBin);
-
-
-                // now we are filling all empty bins by zero
-                int binDist = binId - previousBinId;
-                if (binDist > 1){  // so there is some gap and the bins are in the same week
-                    for ( int i = 1; i < binDist; i++){
-                        binIndexesArray.add(previousBinId + i);
-                        numDCsPerBinArray.add(0);
-                    }
-                } else if (binDist < -1){  // different weeks
-                    int nBinTillEnd = numBins - previousBinId;
-                    for ( int i = 1; i < nBinTillEnd; i++){  // filling till the end of the old week
-                        binIndexesArray.add(previousBinId + i);
-                        numDCsPerBinArray.add(0);
-                    }
-                    for ( int i = 0; i < binId; i++){  // filling from the beginning of the new week
-                        binIndexesArray.add(i);
-                        numDCsPerBinArray.add(0);
-                    }
+        });
+        store.restoreFinalState(dCoS);
+    }
+
+    /**
+     * Adds a DC IE observed at the given time to its bin.
+     */
+    private void registerDC(long dcTime){
+        if (firstTick){
+            previousBinId = calendar.findBinId(dcTime);
+            prevDCtime = dcTime;
+            firstTick = false;
+        }
+        int binId = calendar.findBinId(dcTime);
+        if (binId == previousBinId && (dcTime - prevDCtime) < lenOfBin ){ // same bin ID in the same week
+            numDCinBin += 1;
+        } else {
+//                System.out.println((new Date(dcTime)) + ", " + (previousBinId) + ", " + numDCinBin);
+            binIndexesArray.add(previousBinId);
+            numDCsPerBinArray.add(numDCinBin);
+
+
+            // now we are filling all empty bins by zero
+            int binDist = binId - previousBinId;
+            if (binDist > 1){  // so there is some gap and the bins are in the same week
+                for ( int i = 1; i < binDist; i++){
+                    binIndexesArray.add(previousBinId + i);
+                    numDCsPerBinArray.add(0);
+                }
+            } else if (binDist < -1){  // different weeks
+                int nBinTillEnd = numBins - previousBinId;
+                for ( int i = 1; i < nBinTillEnd; i++){  // filling till the end of the old week
+                    binIndexesArray.add(previousBinId + i);
+                    numDCsPerBinArray.add(0);
+                }
+                for ( int i = 0; i < binId; i++){  // filling from the beginning of the new week
+                    binIndexesArray.add(i);
+                    numDCsPerBinArray.add(0);
                 }
+            }
 
 
 //                long tempTime = prevDCtime + lenOfBin;
@@ -143,20 +223,73 @@ public class NumDCperPeriod {
 //                }
 //                else {
 //                    for (int i = 1; i < binId - previousBinId; i++){
-////                    System.out.println((new Date(aPrice.getTime())) + ", " + (previousBinId + i) + ", " + 0);
+////                    System.out.println((new Date(dcTime)) + ", " + (previousBinId + i) + ", " + 0);
 //                        binIndexesArray.add(previousBinId + i);
 //                        numDCsPerBinArray.add(0);
 //                    }
 //                }
 
 
-                prevDCtime = aPrice.getTime();
-                previousBinId = binId;
-                numDCinBin = 1;
+            prevDCtime = dcTime;
+            previousBinId = binId;
+            numDCinBin = 1;
+        }
+        if (adaptiveThetaTime != null){
+            adaptiveThetaTime.addEvent(dcTime);
+            if (adaptiveThetaTime.getVersion() != adaptiveVersion){
+                useAdaptiveTimestamps();
             }
         }
     }
 
+    /**
+     * Saves the bins observed so far together with their numbers of DCs, the timestamps of bins (they can be theta
+     * ones), the state of the adaptive theta time if it is used and the state of the DcOS instance.
+     */
+    public void writeState(DataOutput out) throws IOException {
+        out.writeBoolean(firstTick);
+        out.writeInt(previousBinId);
+        out.writeInt(numDCinBin);
+        out.writeLong(prevDCtime);
+        Checkpoint.writeLongs(out, timestampsOfBins);
+        out.writeInt(binIndexesArray.size());
+        for (int i = 0; i < binIndexesArray.size(); i++){
+            out.writeInt(binIndexesArray.get(i));
+            out.writeInt(numDCsPerBinArray.get(i));
+        }
+        out.writeBoolean(adaptiveThetaTime != null);
+        if (adaptiveThetaTime != null){
+            adaptiveThetaTime.writeState(out);
+        }
+        dCoS.writeState(out);
+    }
+
+    public void readState(DataInput in) throws IOException {
+        firstTick = in.readBoolean();
+        previousBinId = in.readInt();
+        numDCinBin = in.readInt();
+        prevDCtime = in.readLong();
+        timestampsOfBins = new long[numBins];
+        Checkpoint.readLongs(in, timestampsOfBins);
+        calendar = new WeekBinCalendar(timestampsOfBins, timeZone);
+        int numObservedBins = in.readInt();
+        binIndexesArray.clear();
+        numDCsPerBinArray.clear();
+        for (int i = 0; i < numObservedBins; i++){
+            binIndexesArray.add(in.readInt());
+            numDCsPerBinArray.add(in.readInt());
+        }
+        boolean savedAdaptive = in.readBoolean();
+        if (savedAdaptive != (adaptiveThetaTime != null)){
+            throw new IOException("The checkpoint was taken " + (savedAdaptive ? "with" : "without") + " an adaptive theta time");
+        }
+        if (adaptiveThetaTime != null){
+            adaptiveThetaTime.readState(in);
+            adaptiveVersion = adaptiveThetaTime.getVersion();
+        }
+        dCoS.readState(in);
+    }
+
     /**
      * Creates a list of timestamps of all bins in a week
      * @param lenOfBin len in milliseconds of a bin
@@ -0,0 +1,143 @@
+import market.Price;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * A grid of Runner instances for the heat map of the number of DCs: the row i uses deltaUp = deltasUp[i] and the
+ * column j uses deltaDown = deltasDown[j]. Each cell behaves exactly as new Runner(deltasUp[i], deltasDown[j], type,
+ * absolute) would, but the states of all cells are kept in primitive arrays.
+ *
+ * Ticks are given in blocks: the mid prices of a block are computed once and shared by all cells. Then every cell runs
+ * through the whole block keeping its extreme and type in local variables, and the rows are processed in parallel on a
+ * fork-join pool.
+ */
+public class RunnerGrid {
+
+    private int numRows, numCols;
+    private double[] deltasUp, deltasDown;
+    private double[] extreme; // extreme of the cell (i, j) is at index i * numCols + j
+    private int[] type;
+    private int[] numDCs;
+    private boolean absolute;
+    private ForkJoinPool pool;
+    private float[] mids = new float[0]; // mid prices of the current block
+
+    /**
+     * @param deltasUp are thresholds up, one per row
+     * @param deltasDown are thresholds down, one per column
+     * @param type is the initial type of all runners (see Runner)
+     * @param absolute shows if absolute or relative price moves are used
+     * @param parallelism is the number of threads processing the rows
+     */
+    public RunnerGrid(double[] deltasUp, double[] deltasDown, int type, boolean absolute, int parallelism){
+        this.deltasUp = deltasUp.clone();
+        this.deltasDown = deltasDown.clone();
+        numRows = deltasUp.length;
+        numCols = deltasDown.length;
+        this.absolute = absolute;
+        extreme = new double[numRows * numCols];
+        this.type = new int[numRows * numCols];
+        numDCs = new int[numRows * numCols];
+        Arrays.fill(this.type, type);
+        pool = new ForkJoinPool(parallelism);
+    }
+
+    /**
+     * Runs all cells on a single price. For long samples run(bid, ask, from, to) is much faster.
+     */
+    public void run(Price aTick){
+        if (mids.length < 1){
+            mids = new float[1];
+        }
+        mids[0] = aTick.getMid();
+        for (int i = 0; i < numRows; i++){
+            runRow(i, 1);
+        }
+    }
+
+    /**
+     * Runs all cells on a block of ticks.
+     * @param bid is the column of bids
+     * @param ask is the column of asks
+     * @param from is the index of the first tick to process (inclusive)
+     * @param to is the index of the last tick to process (exclusive)
+     */
+    public void run(long[] bid, long[] ask, int from, int to){
+        int numTicks = to - from;
+        if (mids.length < numTicks){
+            mids = new float[numTicks];
+        }
+        for (int t = 0; t < numTicks; t++){
+            mids[t] = (bid[from + t] + ask[from + t]) / 2.0f; // the same as Price.getMid()
+        }
+        List<ForkJoinTask<?>> tasks = new ArrayList<>(numRows);
+        for (int i = 0; i < numRows; i++){
+            final int row = i;
+            tasks.add(pool.submit(() -> runRow(row, numTicks)));
+        }
+        for (ForkJoinTask<?> task : tasks){
+            task.join();
+        }
+    }
+
+    /**
+     * Runs all cells of the row i on the first numTicks mid prices of the current block.
+     */
+    private void runRow(int i, int numTicks){
+        double deltaUp = deltasUp[i];
+        for (int j = 0; j < numCols; j++){
+            int cell = i * numCols + j;
+            double deltaDown = deltasDown[j];
+            double cellExtreme = extreme[cell];
+            int cellType = type[cell];
+            int cellNumDCs = numDCs[cell];
+            for (int t = 0; t < numTicks; t++){
+                double mid = mids[t];
+                if (cellType == -1){
+                    double move = absolute ? mid - cellExtreme : (mid - cellExtreme) / cellExtreme;
+                    if (move >= deltaUp){
+                        cellType = 1;
+                        cellExtreme = mid;
+                        cellNumDCs++;
+                    } else if (mid < cellExtreme){
+                        cellExtreme = mid;
+                    }
+                } else if (cellType == 1){
+                    double move = absolute ? mid - cellExtreme : (mid - cellExtreme) / mid;
+                    if (move <= -deltaDown){
+                        cellType = -1;
+                        cellExtreme = mid;
+                        cellNumDCs++;
+                    } else if (mid > cellExtreme){
+                        cellExtreme = mid;
+                    }
+                }
+            }
+            extreme[cell] = cellExtreme;
+            type[cell] = cellType;
+            numDCs[cell] = cellNumDCs;
+        }
+    }
+
+    /**
+     * @return matrix of the numbers of DCs: numDCs[i][j] is for deltasUp[i] and deltasDown[j]
+     */
+    public int[][] getNumDCs() {
+        int[][] matrix = new int[numRows][numCols];
+        for (int i = 0; i < numRows; i++){
+            System.arraycopy(numDCs, i * numCols, matrix[i], 0, numCols);
+        }
+        return matrix;
+    }
+
+    /**
+     * Stops the threads of the pool. Should be called when the grid is not needed anymore.
+     */
+    public void shutdown(){
+        pool.shutdown();
+    }
+}
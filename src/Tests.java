@@ -265,39 +265,42 @@ public class Tests {
 //            arrDeltas[i] = minDelta + i * deltaStep;
 //        }
 //
-//        int[][] numDCs = new int[numSteps][numSteps];
-//        Runner[][] runners = new Runner[numSteps][numSteps];
+//        double[] gridDeltas = new double[numSteps];
 //        for (int i = 0; i < numSteps; i++){
-//            for (int j = 0; j < numSteps; j++){
-//                runners[i][j] = new Runner(arrDeltas[i], arrDeltas[j], 1, false);
-//            }
+//            gridDeltas[i] = arrDeltas[i];
 //        }
+//        RunnerGrid runnerGrid = new RunnerGrid(gridDeltas, gridDeltas, 1, false, Runtime.getRuntime().availableProcessors());
+//        int blockSize = 65536;
+//        long[] bids = new long[blockSize];
+//        long[] asks = new long[blockSize];
 //
 //        try {
 //            BufferedReader bufferedReader = new BufferedReader(new FileReader(FILE_PATH + fileName));
 //            String line;
 //            long lineIndex = 0;
+//            int numInBlock = 0;
 //            bufferedReader.readLine(); // header
 //            while ((line = bufferedReader.readLine()) != null) {
-//                String[] elements = line.split(delimeter);
 //                Price aPrice = Tools.priceLineToPrice(line, ",", nDecimals, dateFormat, 1, 2, 0);
-//                for (int i = 0; i < numSteps; i++) {
-//                    for (int j = 0; j < numSteps; j++) {
-//                        int result = runners[i][j].run(aPrice);
-//                        if (result != 0) {
-//                            numDCs[i][j] += 1;
-//                        }
-//                    }
+//                bids[numInBlock] = aPrice.getBid();
+//                asks[numInBlock] = aPrice.getAsk();
+//                numInBlock++;
+//                if (numInBlock == blockSize){
+//                    runnerGrid.run(bids, asks, 0, numInBlock);
+//                    numInBlock = 0;
 //                }
 //                if (lineIndex % 1000000 == 0){
-//                    System.out.println(elements[0]);
+//                    System.out.println(line.split(delimeter)[0]);
 //                }
 //                lineIndex++;
 //            }
+//            runnerGrid.run(bids, asks, 0, numInBlock);
 //        } catch (Exception ex){
 //            ex.printStackTrace();
 //        }
+//        runnerGrid.shutdown();
 //
+//        int[][] numDCs = runnerGrid.getNumDCs();
 //        for (int i = 0; i < numSteps; i++){
 //            for (int j = 0; j < numSteps; j++){
 //                System.out.print(numDCs[i][j] + ", ");
@@ -379,6 +382,36 @@ public class Tests {
 //        }
 
 
+        /**
+         * Both volatilities above for all thresholds, reading the file only once:
+         */
+//        float[] thresholds = {0.00005844169f, 0.00024560764f, 0.00075064411f, 0.005445305f}; // thresholds for SPX500
+//        String FILE_PATH = "D:/Data/";
+//        String fileName = "/Stocks/SPX500/USA500IDXUSD_Ticks_2012.01.16_2017.01.01.csv"; int nDecimals = 3;
+//        String dateFormat = "yyyy.MM.dd HH:mm:ss.SSS";
+//
+//        FanOutDriver fanOutDriver = new FanOutDriver(Runtime.getRuntime().availableProcessors() - 1, 1 << 16, TickRing.WaitStrategy.YIELD);
+//        InstantaneousVolatility[] instantaneousVolatilities = new InstantaneousVolatility[thresholds.length];
+//        RealizedVolatility[] realizedVolatilities = new RealizedVolatility[thresholds.length];
+//        for (int i = 0; i < thresholds.length; i++){
+//            instantaneousVolatilities[i] = new InstantaneousVolatility(thresholds[i]);
+//            realizedVolatilities[i] = new RealizedVolatility(thresholds[i]);
+//            fanOutDriver.register(instantaneousVolatilities[i]::run);
+//            fanOutDriver.register(realizedVolatilities[i]::run);
+//        }
+//        try (InputStream inputStream = new FileInputStream(FILE_PATH + fileName)){
+//            fanOutDriver.run(inputStream, new TickParser(",", nDecimals, dateFormat, 1, 2, 0));
+//        } catch (Exception ex){
+//            ex.printStackTrace();
+//        }
+//        for (int i = 0; i < thresholds.length; i++){
+//            instantaneousVolatilities[i].finish();
+//            realizedVolatilities[i].finish();
+//            System.out.println(thresholds[i] + ": instantaneous " + instantaneousVolatilities[i].getTotalVolat() +
+//                    ", realized " + realizedVolatilities[i].getTotalVolatility());
+//        }
+
+
         /**
          * InstantaneousVolatilitySeasonality which only computes number of DCs and connects them with Instantaneous
          * volatility, implemented to real data:
@@ -1,6 +1,11 @@
 package ievents; // stands for IntrinsicEvents
 
 import market.Price;
+import tools.Checkpointable;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 
 /**
  * Created by author.
@@ -11,9 +16,15 @@ import market.Price;
  * The class offers two different versions of a price move calculation: absolute and relative ones. The first
  * definition may be useful, for example, in case of when we have prices generated by an arithmetical brownian motion.
  * The second, when all prices are similar to ones generated by a geometrical brownian motion.
+ *
+ * In the relative version no logarithm is computed for an ordinary tick. Instead, every time the extreme or the
+ * reference changes the class computes the prices at which the next DC or OS IE would happen (the price times the
+ * exponent of the threshold). A tick is then simply compared to these trigger prices. Only a price which is in a tiny
+ * band around a trigger is checked by the original log formula, so that the sequence of events is exactly the same.
+ * Prices are supposed to be positive.
  */
 
-public class DcOS {
+public class DcOS implements Checkpointable {
 
     private long extreme;
     private long prevExtreme;
@@ -30,6 +41,12 @@ public class DcOS {
     private double osL; // is length of the previous overshoot
     private long tPrevOS, tPrevDcIE, tOS, tDcIE, tExtreme, tOsIE; // times of the tipping points of the intrinsic time
 
+    static final double TRIGGER_GUARD = 1e-9; // relative width of the band where the exact log check is used
+    private double expThresholdUp, expThresholdDown, expOsSizeUp, expOsSizeDown; // exp(+-size) of the thresholds
+    private IEventRing eventRing; // if not null, every observed event is published there
+    private double dcTriggerSure, dcTriggerMaybe; // a price beyond the first one is a DC IE, before the second one is not
+    private double osTriggerSure, osTriggerMaybe; // the same for an OS IE
+
     public DcOS(double thresholdUp, double thresholdDown, int initialMode, double osSizeUp, double osSizeDown, boolean relativeMoves){
         this.initialized = false;
         this.thresholdUp = thresholdUp;
@@ -38,6 +55,7 @@ public class DcOS {
         this.osSizeUp = osSizeUp;
         this.osSizeDown = osSizeDown;
         this.relativeMoves = relativeMoves;
+        computeExpSizes();
     }
 
     public DcOS(double thresholdUp, double thresholdDown, int initialMode, double osSizeUp, double osSizeDown, Price initPrice, boolean relativeMoves){
@@ -49,77 +67,191 @@ public class DcOS {
         this.osSizeDown = osSizeDown;
         extreme = prevExtreme = reference = prevDCprice = latestDCprice = (mode == 1 ? initPrice.getAsk() : initPrice.getBid());
         tPrevOS = tPrevDcIE = tOS = tDcIE = tExtreme = tOsIE = initPrice.getTime();
+        computeExpSizes();
+    }
 
+    /**
+     * Creates a copy of the given instance in exactly the same state. The event ring is not copied.
+     * @param other is the instance to copy
+     */
+    public DcOS(DcOS other){
+        this.initialized = other.initialized;
+        this.thresholdUp = other.thresholdUp;
+        this.thresholdDown = other.thresholdDown;
+        this.osSizeUp = other.osSizeUp;
+        this.osSizeDown = other.osSizeDown;
+        this.mode = other.mode;
+        this.relativeMoves = other.relativeMoves;
+        this.extreme = other.extreme;
+        this.prevExtreme = other.prevExtreme;
+        this.reference = other.reference;
+        this.latestDCprice = other.latestDCprice;
+        this.prevDCprice = other.prevDCprice;
+        this.osL = other.osL;
+        this.tPrevOS = other.tPrevOS;
+        this.tPrevDcIE = other.tPrevDcIE;
+        this.tOS = other.tOS;
+        this.tDcIE = other.tDcIE;
+        this.tExtreme = other.tExtreme;
+        this.tOsIE = other.tOsIE;
+        computeExpSizes();
     }
 
+    /**
+     * Thin adapter over the primitive version of the method, kept for the code which already has Price instances.
+     * @param aPrice is a new price
+     * @return the same what run(bid, ask, time) returns
+     */
     public int run(Price aPrice){
+        return run(aPrice.getBid(), aPrice.getAsk(), aPrice.getTime());
+    }
+
+    /**
+     * The main entry point of the class. Takes raw primitive values of a price so that readers and generators do not
+     * have to create a Price instance for every tick. Nothing is allocated here.
+     * @param bid is the bid of a new price
+     * @param ask is the ask of a new price
+     * @param time is the time of a new price in milliseconds
+     * @return +1 or -1 in case of Directional-Change (DC) Intrinsic Event (IE) upward or downward and also +2 or -2
+     * in case of an Overshoot (OS) IE upward or downward. Otherwise, returns 0;
+     */
+    public int run(long bid, long ask, long time){
+        int event = relativeMoves ? runRelative(bid, ask, time) : runAbsolute(bid, ask, time);
+        if (event != 0 && eventRing != null){
+            publishEvent(event);
+        }
+        return event;
+    }
+
+    /**
+     * Processes a whole block of ticks given as columns of primitive values. Indices and types of all found intrinsic
+     * events are written to the events buffer as pairs: events[2 * k] is the index of the tick of the k-th event and
+     * events[2 * k + 1] is its type (+-1 or +-2). The buffer can be reused from one block to another. Since there
+     * is at most one event per tick, it has to be able to keep 2 * (to - from) values.
+     * @param bid is the column of bids
+     * @param ask is the column of asks
+     * @param time is the column of times
+     * @param from is the index of the first tick to process (inclusive)
+     * @param to is the index of the last tick to process (exclusive)
+     * @param events is the output buffer
+     * @return number of intrinsic events written to the buffer
+     */
+    public int runBatch(long[] bid, long[] ask, long[] time, int from, int to, int[] events){
+        if (events.length < 2 * (to - from)){
+            throw new IllegalArgumentException("The events buffer should be able to keep " + 2 * (to - from) + " values");
+        }
+        int numEvents = 0;
         if (relativeMoves){
-            return runRelative(aPrice);
+            for (int i = from; i < to; i++){
+                int event = runRelative(bid[i], ask[i], time[i]);
+                if (event != 0){
+                    events[numEvents++] = i;
+                    events[numEvents++] = event;
+                    if (eventRing != null){
+                        publishEvent(event);
+                    }
+                }
+            }
         } else {
-            return runAbsolute(aPrice);
+            for (int i = from; i < to; i++){
+                int event = runAbsolute(bid[i], ask[i], time[i]);
+                if (event != 0){
+                    events[numEvents++] = i;
+                    events[numEvents++] = event;
+                    if (eventRing != null){
+                        publishEvent(event);
+                    }
+                }
+            }
         }
+        return numEvents / 2;
     }
 
     /**
-     * Uses log function in order to compute a price move
-     * @param aPrice is a new price
+     * Publishes the event which has just been observed to the event ring. See IEventRing for the meaning of the fields.
+     * @param event is the type of the event
+     */
+    private void publishEvent(int event){
+        if (event == 1 || event == -1){
+            eventRing.publish(event, tDcIE, latestDCprice, prevExtreme, tOS, osL, tPrevDcIE);
+        } else {
+            eventRing.publish(event, tOsIE, reference, extreme, tExtreme, osL, tDcIE);
+        }
+    }
+
+    /**
+     * Computes a relative price move. The log function is only used to confirm prices which are very close to one of
+     * the trigger prices (see updateDcTrigger and updateOsTrigger) and to compute the length of an overshoot.
+     * @param bid is the bid of a new price
+     * @param ask is the ask of a new price
+     * @param time is the time of a new price
      * @return +1 or -1 in case of Directional-Change (DC) Intrinsic Event (IE) upward or downward and also +2 or -2
      * in case of an Overshoot (OS) IE upward or downward. Otherwise, returns 0;
      */
-    private int runRelative(Price aPrice){
+    private int runRelative(long bid, long ask, long time){
         if (!initialized){
             initialized = true;
-            extreme = prevExtreme = reference = prevDCprice = latestDCprice =(mode == 1 ? aPrice.getAsk() : aPrice.getBid());
-            tPrevOS = tPrevDcIE = tOS = tDcIE = tExtreme = tOsIE = aPrice.getTime();
+            extreme = prevExtreme = reference = prevDCprice = latestDCprice =(mode == 1 ? ask : bid);
+            tPrevOS = tPrevDcIE = tOS = tDcIE = tExtreme = tOsIE = time;
+            updateDcTrigger();
+            updateOsTrigger();
 
         } else {
             if (mode == 1){
-                if (aPrice.getAsk() < extreme){
-                    extreme = aPrice.getAsk();
-                    tExtreme = aPrice.getTime();
-                    if ( -Math.log((double) extreme / reference) >= osSizeDown){
+                if (ask < extreme){
+                    extreme = ask;
+                    tExtreme = time;
+                    updateDcTrigger();
+                    if (extreme <= osTriggerSure || (extreme <= osTriggerMaybe && -Math.log((double) extreme / reference) >= osSizeDown)){
                         reference = extreme;
-                        tOsIE = aPrice.getTime();
+                        tOsIE = time;
+                        updateOsTrigger();
                         return -2;
                     }
                     return 0;
-                } else if (Math.log((double) aPrice.getBid() / extreme) >= thresholdUp){
+                } else if (bid >= dcTriggerSure || (bid >= dcTriggerMaybe && Math.log((double) bid / extreme) >= thresholdUp)){
                     osL = -Math.log((double) extreme / latestDCprice);
                     tPrevOS = tOS;
                     tPrevDcIE = tDcIE;
                     tOS = tExtreme;
-                    tDcIE = aPrice.getTime();
-                    tExtreme = aPrice.getTime();
+                    tDcIE = time;
+                    tExtreme = time;
                     prevDCprice = latestDCprice;
-                    latestDCprice = aPrice.getBid();
+                    latestDCprice = bid;
                     prevExtreme = extreme;
-                    extreme = reference = aPrice.getBid();
+                    extreme = reference = bid;
                     mode *= -1;
+                    updateDcTrigger();
+                    updateOsTrigger();
                     return 1;
                 }
             }
             else if (mode == -1){
-                if (aPrice.getBid() > extreme){
-                    extreme = aPrice.getBid();
-                    tExtreme = aPrice.getTime();
-                    if (Math.log((double) extreme / reference) >= osSizeUp){
+                if (bid > extreme){
+                    extreme = bid;
+                    tExtreme = time;
+                    updateDcTrigger();
+                    if (extreme >= osTriggerSure || (extreme >= osTriggerMaybe && Math.log((double) extreme / reference) >= osSizeUp)){
                         reference = extreme;
-                        tOsIE = aPrice.getTime();
+                        tOsIE = time;
+                        updateOsTrigger();
                         return 2;
                     }
                     return 0;
-                } else if (-Math.log((double) aPrice.getAsk() / extreme) >= thresholdDown){
+                } else if (ask <= dcTriggerSure || (ask <= dcTriggerMaybe && -Math.log((double) ask / extreme) >= thresholdDown)){
                     osL = Math.log((double) extreme / latestDCprice);
                     tPrevOS = tOS;
                     tPrevDcIE = tDcIE;
                     tOS = tExtreme;
-                    tDcIE = aPrice.getTime();
-                    tExtreme = aPrice.getTime();
+                    tDcIE = time;
+                    tExtreme = time;
                     prevDCprice = latestDCprice;
-                    latestDCprice = aPrice.getAsk();
+                    latestDCprice = ask;
                     prevExtreme = extreme;
-                    extreme = reference = aPrice.getAsk();
+                    extreme = reference = ask;
                     mode *= -1;
+                    updateDcTrigger();
+                    updateOsTrigger();
                     return -1;
                 }
             }
@@ -128,63 +260,110 @@ public class DcOS {
         return 0;
     }
 
+    /**
+     * Computes the price at which the next DC IE happens given the current extreme and mode. The exact trigger is
+     * surrounded by a guard band: a price beyond dcTriggerSure is a DC for sure, a price before dcTriggerMaybe is
+     * surely not, and a price in between has to be checked by the log formula.
+     */
+    private void updateDcTrigger(){
+        if (mode == 1){
+            double trigger = extreme * expThresholdUp;
+            dcTriggerSure = trigger * (1 + TRIGGER_GUARD);
+            dcTriggerMaybe = trigger * (1 - TRIGGER_GUARD);
+        } else {
+            double trigger = extreme / expThresholdDown;
+            dcTriggerSure = trigger * (1 - TRIGGER_GUARD);
+            dcTriggerMaybe = trigger * (1 + TRIGGER_GUARD);
+        }
+    }
+
+    /**
+     * Computes the extreme price at which the next OS IE happens given the current reference and mode. Uses the same
+     * guard band as updateDcTrigger.
+     */
+    private void updateOsTrigger(){
+        if (mode == 1){
+            double trigger = reference / expOsSizeDown;
+            osTriggerSure = trigger * (1 - TRIGGER_GUARD);
+            osTriggerMaybe = trigger * (1 + TRIGGER_GUARD);
+        } else {
+            double trigger = reference * expOsSizeUp;
+            osTriggerSure = trigger * (1 + TRIGGER_GUARD);
+            osTriggerMaybe = trigger * (1 - TRIGGER_GUARD);
+        }
+    }
+
+    /**
+     * Should be called every time the size of a threshold or the state of the instance is changed from outside.
+     */
+    private void computeExpSizes(){
+        expThresholdUp = Math.exp(thresholdUp);
+        expThresholdDown = Math.exp(thresholdDown);
+        expOsSizeUp = Math.exp(osSizeUp);
+        expOsSizeDown = Math.exp(osSizeDown);
+        updateDcTrigger();
+        updateOsTrigger();
+    }
+
     /**
      * Uses absolute values a price move
-     * @param aPrice is a new price
+     * @param bid is the bid of a new price
+     * @param ask is the ask of a new price
+     * @param time is the time of a new price
      * @return +1 or -1 in case of Directional-Change (DC) Intrinsic Event (IE) upward or downward and also +2 or -2
      * in case of an Overshoot (OS) IE upward or downward. Otherwise, returns 0;
      */
-    private int runAbsolute(Price aPrice){
+    private int runAbsolute(long bid, long ask, long time){
         if (!initialized){
             initialized = true;
-            extreme = prevExtreme = reference = prevDCprice = latestDCprice =(mode == 1 ? aPrice.getAsk() : aPrice.getBid());
+            extreme = prevExtreme = reference = prevDCprice = latestDCprice =(mode == 1 ? ask : bid);
         } else {
             if (mode == 1){
-                if (aPrice.getAsk() < extreme){
-                    extreme = aPrice.getAsk();
-                    tExtreme = aPrice.getTime();
+                if (ask < extreme){
+                    extreme = ask;
+                    tExtreme = time;
                     if ( -(extreme - reference) >= osSizeDown){
                         reference = extreme;
-                        tOsIE = aPrice.getTime();
+                        tOsIE = time;
                         return -2;
                     }
                     return 0;
-                } else if (aPrice.getBid() - extreme >= thresholdUp){
+                } else if (bid - extreme >= thresholdUp){
                     osL = -(extreme - latestDCprice);
                     tPrevOS = tOS;
                     tPrevDcIE = tDcIE;
                     tOS = tExtreme;
-                    tDcIE = aPrice.getTime();
-                    tExtreme = aPrice.getTime();
+                    tDcIE = time;
+                    tExtreme = time;
                     prevDCprice = latestDCprice;
-                    latestDCprice = aPrice.getBid();
+                    latestDCprice = bid;
                     prevExtreme = extreme;
-                    extreme = reference = aPrice.getBid();
+                    extreme = reference = bid;
                     mode *= -1;
                     return 1;
                 }
             }
             else if (mode == -1){
-                if (aPrice.getBid() > extreme){
-                    extreme = aPrice.getBid();
-                    tExtreme = aPrice.getTime();
+                if (bid > extreme){
+                    extreme = bid;
+                    tExtreme = time;
                     if (extreme - reference >= osSizeUp){
                         reference = extreme;
-                        tOsIE = aPrice.getTime();
+                        tOsIE = time;
                         return 2;
                     }
                     return 0;
-                } else if (-(aPrice.getAsk() - extreme) >= thresholdDown){
+                } else if (-(ask - extreme) >= thresholdDown){
                     osL = (extreme - latestDCprice);
                     tPrevOS = tOS;
                     tPrevDcIE = tDcIE;
                     tOS = tExtreme;
-                    tDcIE = aPrice.getTime();
-                    tExtreme = aPrice.getTime();
+                    tDcIE = time;
+                    tExtreme = time;
                     prevDCprice = latestDCprice;
-                    latestDCprice = aPrice.getAsk();
+                    latestDCprice = ask;
                     prevExtreme = extreme;
-                    extreme = reference = aPrice.getAsk();
+                    extreme = reference = ask;
                     mode *= -1;
                     return -1;
                 }
@@ -209,6 +388,68 @@ public class DcOS {
         return sqrtOsDeviation;
     }
 
+    /**
+     * Writes the whole state of the instance (sizes of the thresholds, extremes, mode, times of the tipping points...).
+     * The event ring is not a part of the state.
+     */
+    public void writeState(DataOutput out) throws IOException {
+        out.writeDouble(thresholdUp);
+        out.writeDouble(thresholdDown);
+        out.writeDouble(osSizeUp);
+        out.writeDouble(osSizeDown);
+        out.writeBoolean(relativeMoves);
+        out.writeBoolean(initialized);
+        out.writeInt(mode);
+        out.writeLong(extreme);
+        out.writeLong(prevExtreme);
+        out.writeLong(reference);
+        out.writeLong(latestDCprice);
+        out.writeLong(prevDCprice);
+        out.writeDouble(osL);
+        out.writeLong(tPrevOS);
+        out.writeLong(tPrevDcIE);
+        out.writeLong(tOS);
+        out.writeLong(tDcIE);
+        out.writeLong(tExtreme);
+        out.writeLong(tOsIE);
+    }
+
+    public void readState(DataInput in) throws IOException {
+        thresholdUp = in.readDouble();
+        thresholdDown = in.readDouble();
+        osSizeUp = in.readDouble();
+        osSizeDown = in.readDouble();
+        relativeMoves = in.readBoolean();
+        initialized = in.readBoolean();
+        mode = in.readInt();
+        extreme = in.readLong();
+        prevExtreme = in.readLong();
+        reference = in.readLong();
+        latestDCprice = in.readLong();
+        prevDCprice = in.readLong();
+        osL = in.readDouble();
+        tPrevOS = in.readLong();
+        tPrevDcIE = in.readLong();
+        tOS = in.readLong();
+        tDcIE = in.readLong();
+        tExtreme = in.readLong();
+        tOsIE = in.readLong();
+        computeExpSizes();
+    }
+
+    /**
+     * Sets the ring buffer where all observed intrinsic events are published. One ring can be read by any number of
+     * analyses.
+     * @param eventRing is the ring, or null to stop publishing
+     */
+    public void setEventRing(IEventRing eventRing) {
+        this.eventRing = eventRing;
+    }
+
+    public IEventRing getEventRing() {
+        return eventRing;
+    }
+
     public double getOsL(){
         return osL;
     }
@@ -229,6 +470,7 @@ public class DcOS {
 
     public void setExtreme(long extreme) {
         this.extreme = extreme;
+        computeExpSizes();
     }
 
     public double getThresholdUp() {
@@ -237,6 +479,7 @@ public class DcOS {
 
     public void setThresholdUp(float thresholdUp) {
         this.thresholdUp = thresholdUp;
+        computeExpSizes();
     }
 
     public double getThresholdDown() {
@@ -245,6 +488,7 @@ public class DcOS {
 
     public void setThresholdDown(float thresholdDown) {
         this.thresholdDown = thresholdDown;
+        computeExpSizes();
     }
 
     public double getOsSizeUp() {
@@ -253,6 +497,7 @@ public class DcOS {
 
     public void setOsSizeUp(float osSizeUp) {
         this.osSizeUp = osSizeUp;
+        computeExpSizes();
     }
 
     public double getOsSizeDown() {
@@ -261,6 +506,7 @@ public class DcOS {
 
     public void setOsSizeDown(float osSizeDown) {
         this.osSizeDown = osSizeDown;
+        computeExpSizes();
     }
 
     public int getMode() {
@@ -269,12 +515,17 @@ public class DcOS {
 
     public void setMode(int mode) {
         this.mode = mode;
+        computeExpSizes();
     }
 
     public boolean isInitialized() {
         return initialized;
     }
 
+    public boolean isRelativeMoves() {
+        return relativeMoves;
+    }
+
     public void setInitialized(boolean initialized) {
         this.initialized = initialized;
     }
@@ -285,6 +536,7 @@ public class DcOS {
 
     public void setReference(long reference) {
         this.reference = reference;
+        computeExpSizes();
     }
 
     public long gettPrevOS() {
@@ -0,0 +1,488 @@
+package ievents;
+
+import market.Price;
+import tools.Checkpoint;
+import tools.Checkpointable;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * The class runs N instances of the DcOS algorithm (one per threshold) at once. Instead of keeping N separate DcOS
+ * objects, the state of all thresholds (extremes, references, modes, times of the tipping points...) is stored in
+ * parallel primitive arrays, so that one tick is processed by a single loop over contiguous memory.
+ *
+ * The semantics of every threshold is exactly the one of the DcOS class: relative or absolute price moves, the same
+ * trigger prices of the relative version and the same values of the times and the overshoot lengths.
+ *
+ * After each call of the run method the array returned by getEvents() holds the event observed at every threshold:
+ * +1 or -1 in case of DC IE upward or downward, +2 or -2 in case of OS IE upward or downward, 0 otherwise.
+ *
+ * TimeTotMoveScalLaw runs on it. The heat map of the number of DCs uses RunnerGrid, because the cells follow the rules
+ * of Runner (mid prices, no overshoots) and not the ones of DcOS. The seasonality classes have one threshold each and
+ * keep their own DcOS instance.
+ */
+
+public class DcOSBank implements Checkpointable {
+
+    private int numThresholds;
+    private boolean relativeMoves; // shows if the algorithm should compute relative of absolute price changes
+    private boolean initialized;
+    private double[] thresholdUp, thresholdDown, osSizeUp, osSizeDown;
+    private double[] expThresholdUp, expThresholdDown, expOsSizeUp, expOsSizeDown; // exp(size) of the thresholds
+    private long[] extreme, prevExtreme, reference, latestDCprice, prevDCprice;
+    private int[] mode; // +1 for expected upward DC, -1 for expected downward DC
+    private double[] osL; // is length of the previous overshoot
+    private long[] tPrevOS, tPrevDcIE, tOS, tDcIE, tExtreme, tOsIE; // times of the tipping points of the intrinsic time
+    private double[] dcTriggerSure, dcTriggerMaybe, osTriggerSure, osTriggerMaybe; // see the DcOS class
+    private double[] quietAskFloor, quietBidCeil; // a tick with ask > floor and bid < ceil changes nothing
+    private int[] events; // events observed at the latest tick
+
+    /**
+     * The constructor for the symmetric case: thresholds up and down and the sizes of overshoots are equal.
+     * @param thresholds is an array of thresholds (1% == 0.01)
+     * @param initialMode +1 for expected upward DC, -1 for expected downward DC
+     * @param relativeMoves shows if the algorithm should compute relative of absolute price changes
+     */
+    public DcOSBank(double[] thresholds, int initialMode, boolean relativeMoves){
+        this(thresholds, thresholds, initialMode, thresholds, thresholds, relativeMoves);
+    }
+
+    public DcOSBank(double[] thresholdsUp, double[] thresholdsDown, int initialMode, double[] osSizesUp, double[] osSizesDown, boolean relativeMoves){
+        numThresholds = thresholdsUp.length;
+        this.relativeMoves = relativeMoves;
+        this.initialized = false;
+        thresholdUp = thresholdsUp.clone();
+        thresholdDown = thresholdsDown.clone();
+        osSizeUp = osSizesUp.clone();
+        osSizeDown = osSizesDown.clone();
+        expThresholdUp = new double[numThresholds];
+        expThresholdDown = new double[numThresholds];
+        expOsSizeUp = new double[numThresholds];
+        expOsSizeDown = new double[numThresholds];
+        extreme = new long[numThresholds];
+        prevExtreme = new long[numThresholds];
+        reference = new long[numThresholds];
+        latestDCprice = new long[numThresholds];
+        prevDCprice = new long[numThresholds];
+        mode = new int[numThresholds];
+        osL = new double[numThresholds];
+        tPrevOS = new long[numThresholds];
+        tPrevDcIE = new long[numThresholds];
+        tOS = new long[numThresholds];
+        tDcIE = new long[numThresholds];
+        tExtreme = new long[numThresholds];
+        tOsIE = new long[numThresholds];
+        dcTriggerSure = new double[numThresholds];
+        dcTriggerMaybe = new double[numThresholds];
+        osTriggerSure = new double[numThresholds];
+        osTriggerMaybe = new double[numThresholds];
+        quietAskFloor = new double[numThresholds];
+        quietBidCeil = new double[numThresholds];
+        events = new int[numThresholds];
+        for (int i = 0; i < numThresholds; i++){
+            mode[i] = initialMode;
+            expThresholdUp[i] = Math.exp(thresholdUp[i]);
+            expThresholdDown[i] = Math.exp(thresholdDown[i]);
+            expOsSizeUp[i] = Math.exp(osSizeUp[i]);
+            expOsSizeDown[i] = Math.exp(osSizeDown[i]);
+        }
+    }
+
+    public int run(Price aPrice){
+        return run(aPrice.getBid(), aPrice.getAsk(), aPrice.getTime());
+    }
+
+    /**
+     * Should be called for every tick. Runs all thresholds on the given price.
+     * @param bid is the bid of a new price
+     * @param ask is the ask of a new price
+     * @param time is the time of a new price in milliseconds
+     * @return number of thresholds which observed an intrinsic event (DC or OS) at this price. The events themselves
+     * are in the array returned by getEvents().
+     */
+    public int run(long bid, long ask, long time){
+        if (!initialized){
+            initialized = true;
+            for (int i = 0; i < numThresholds; i++){
+                initialize(i, bid, ask, time);
+            }
+            return 0;
+        }
+        int numEvents = 0;
+        if (relativeMoves){
+            for (int i = 0; i < numThresholds; i++){
+                if (ask > quietAskFloor[i] && bid < quietBidCeil[i]){ // neither a new extreme nor a possible DC IE
+                    events[i] = 0;
+                    continue;
+                }
+                int event = runRelative(i, bid, ask, time);
+                events[i] = event;
+                if (event != 0){
+                    numEvents++;
+                }
+            }
+        } else {
+            for (int i = 0; i < numThresholds; i++){
+                if (ask > quietAskFloor[i] && bid < quietBidCeil[i]){
+                    events[i] = 0;
+                    continue;
+                }
+                int event = runAbsolute(i, bid, ask, time);
+                events[i] = event;
+                if (event != 0){
+                    numEvents++;
+                }
+            }
+        }
+        return numEvents;
+    }
+
+    /**
+     * Runs only the threshold i. Is used by the classes which decide themselves which thresholds have to see a tick,
+     * for example DcOSTriggerBank. The bank must have been initialized by the run method before.
+     * @return the event observed at the threshold i
+     */
+    int runOne(int i, long bid, long ask, long time){
+        int event = relativeMoves ? runRelative(i, bid, ask, time) : runAbsolute(i, bid, ask, time);
+        events[i] = event;
+        return event;
+    }
+
+    /**
+     * @return the price such that only an ask at or below it can change the state of the threshold i
+     */
+    double getQuietAskFloor(int i) {
+        return quietAskFloor[i];
+    }
+
+    /**
+     * @return the price such that only a bid at or above it can change the state of the threshold i
+     */
+    double getQuietBidCeil(int i) {
+        return quietBidCeil[i];
+    }
+
+    private void initialize(int i, long bid, long ask, long time){
+        extreme[i] = prevExtreme[i] = reference[i] = prevDCprice[i] = latestDCprice[i] = (mode[i] == 1 ? ask : bid);
+        if (relativeMoves){
+            tPrevOS[i] = tPrevDcIE[i] = tOS[i] = tDcIE[i] = tExtreme[i] = tOsIE[i] = time;
+            updateDcTrigger(i);
+            updateOsTrigger(i);
+        } else {
+            updateAbsoluteQuietBand(i);
+        }
+        events[i] = 0;
+    }
+
+    /**
+     * The same as DcOS.runRelative but for the threshold i.
+     */
+    private int runRelative(int i, long bid, long ask, long time){
+        if (mode[i] == 1){
+            if (ask < extreme[i]){
+                extreme[i] = ask;
+                tExtreme[i] = time;
+                updateDcTrigger(i);
+                if (ask <= osTriggerSure[i] || (ask <= osTriggerMaybe[i] && -Math.log((double) ask / reference[i]) >= osSizeDown[i])){
+                    reference[i] = ask;
+                    tOsIE[i] = time;
+                    updateOsTrigger(i);
+                    return -2;
+                }
+                return 0;
+            } else if (bid >= dcTriggerSure[i] || (bid >= dcTriggerMaybe[i] && Math.log((double) bid / extreme[i]) >= thresholdUp[i])){
+                osL[i] = -Math.log((double) extreme[i] / latestDCprice[i]);
+                registerDC(i, bid, time);
+                updateDcTrigger(i);
+                updateOsTrigger(i);
+                return 1;
+            }
+        } else {
+            if (bid > extreme[i]){
+                extreme[i] = bid;
+                tExtreme[i] = time;
+                updateDcTrigger(i);
+                if (bid >= osTriggerSure[i] || (bid >= osTriggerMaybe[i] && Math.log((double) bid / reference[i]) >= osSizeUp[i])){
+                    reference[i] = bid;
+                    tOsIE[i] = time;
+                    updateOsTrigger(i);
+                    return 2;
+                }
+                return 0;
+            } else if (ask <= dcTriggerSure[i] || (ask <= dcTriggerMaybe[i] && -Math.log((double) ask / extreme[i]) >= thresholdDown[i])){
+                osL[i] = Math.log((double) extreme[i] / latestDCprice[i]);
+                registerDC(i, ask, time);
+                updateDcTrigger(i);
+                updateOsTrigger(i);
+                return -1;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * The same as DcOS.runAbsolute but for the threshold i.
+     */
+    private int runAbsolute(int i, long bid, long ask, long time){
+        if (mode[i] == 1){
+            if (ask < extreme[i]){
+                extreme[i] = ask;
+                tExtreme[i] = time;
+                updateAbsoluteQuietBand(i);
+                if (-(ask - reference[i]) >= osSizeDown[i]){
+                    reference[i] = ask;
+                    tOsIE[i] = time;
+                    return -2;
+                }
+                return 0;
+            } else if (bid - extreme[i] >= thresholdUp[i]){
+                osL[i] = -(extreme[i] - latestDCprice[i]);
+                registerDC(i, bid, time);
+                updateAbsoluteQuietBand(i);
+                return 1;
+            }
+        } else {
+            if (bid > extreme[i]){
+                extreme[i] = bid;
+                tExtreme[i] = time;
+                updateAbsoluteQuietBand(i);
+                if (bid - reference[i] >= osSizeUp[i]){
+                    reference[i] = bid;
+                    tOsIE[i] = time;
+                    return 2;
+                }
+                return 0;
+            } else if (-(ask - extreme[i]) >= thresholdDown[i]){
+                osL[i] = (extreme[i] - latestDCprice[i]);
+                registerDC(i, ask, time);
+                updateAbsoluteQuietBand(i);
+                return -1;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Moves the threshold i to the new mode after a DC IE observed at the given price.
+     */
+    private void registerDC(int i, long dcPrice, long time){
+        tPrevOS[i] = tOS[i];
+        tPrevDcIE[i] = tDcIE[i];
+        tOS[i] = tExtreme[i];
+        tDcIE[i] = time;
+        tExtreme[i] = time;
+        prevDCprice[i] = latestDCprice[i];
+        latestDCprice[i] = dcPrice;
+        prevExtreme[i] = extreme[i];
+        extreme[i] = reference[i] = dcPrice;
+        mode[i] *= -1;
+    }
+
+    /**
+     * Besides the DC trigger prices of the threshold i, updates its quiet band: the range of prices which neither make
+     * a new extreme nor can be a DC IE.
+     */
+    private void updateDcTrigger(int i){
+        if (mode[i] == 1){
+            double trigger = extreme[i] * expThresholdUp[i];
+            dcTriggerSure[i] = trigger * (1 + DcOS.TRIGGER_GUARD);
+            dcTriggerMaybe[i] = trigger * (1 - DcOS.TRIGGER_GUARD);
+            quietAskFloor[i] = extreme[i] - 1;
+            quietBidCeil[i] = dcTriggerMaybe[i];
+        } else {
+            double trigger = extreme[i] / expThresholdDown[i];
+            dcTriggerSure[i] = trigger * (1 - DcOS.TRIGGER_GUARD);
+            dcTriggerMaybe[i] = trigger * (1 + DcOS.TRIGGER_GUARD);
+            quietAskFloor[i] = dcTriggerMaybe[i];
+            quietBidCeil[i] = extreme[i] + 1;
+        }
+    }
+
+    private void updateOsTrigger(int i){
+        if (mode[i] == 1){
+            double trigger = reference[i] / expOsSizeDown[i];
+            osTriggerSure[i] = trigger * (1 - DcOS.TRIGGER_GUARD);
+            osTriggerMaybe[i] = trigger * (1 + DcOS.TRIGGER_GUARD);
+        } else {
+            double trigger = reference[i] * expOsSizeUp[i];
+            osTriggerSure[i] = trigger * (1 + DcOS.TRIGGER_GUARD);
+            osTriggerMaybe[i] = trigger * (1 - DcOS.TRIGGER_GUARD);
+        }
+    }
+
+    /**
+     * The quiet band of the absolute version. Since prices are integers, a move of d points reaches the threshold if
+     * and only if d >= ceil(threshold).
+     */
+    private void updateAbsoluteQuietBand(int i){
+        if (mode[i] == 1){
+            quietAskFloor[i] = extreme[i] - 1;
+            quietBidCeil[i] = extreme[i] + Math.ceil(thresholdUp[i]);
+        } else {
+            quietAskFloor[i] = extreme[i] - Math.ceil(thresholdDown[i]);
+            quietBidCeil[i] = extreme[i] + 1;
+        }
+    }
+
+    /**
+     * Writes the state of all thresholds. The bank which reads the state must have the same number of thresholds.
+     */
+    public void writeState(DataOutput out) throws IOException {
+        out.writeInt(numThresholds);
+        out.writeBoolean(relativeMoves);
+        out.writeBoolean(initialized);
+        Checkpoint.writeDoubles(out, thresholdUp);
+        Checkpoint.writeDoubles(out, thresholdDown);
+        Checkpoint.writeDoubles(out, osSizeUp);
+        Checkpoint.writeDoubles(out, osSizeDown);
+        Checkpoint.writeInts(out, mode);
+        Checkpoint.writeLongs(out, extreme);
+        Checkpoint.writeLongs(out, prevExtreme);
+        Checkpoint.writeLongs(out, reference);
+        Checkpoint.writeLongs(out, latestDCprice);
+        Checkpoint.writeLongs(out, prevDCprice);
+        Checkpoint.writeDoubles(out, osL);
+        Checkpoint.writeLongs(out, tPrevOS);
+        Checkpoint.writeLongs(out, tPrevDcIE);
+        Checkpoint.writeLongs(out, tOS);
+        Checkpoint.writeLongs(out, tDcIE);
+        Checkpoint.writeLongs(out, tExtreme);
+        Checkpoint.writeLongs(out, tOsIE);
+    }
+
+    public void readState(DataInput in) throws IOException {
+        int savedNumThresholds = in.readInt();
+        if (savedNumThresholds != numThresholds){
+            throw new IOException("The saved bank has " + savedNumThresholds + " thresholds, " + numThresholds + " expected");
+        }
+        relativeMoves = in.readBoolean();
+        initialized = in.readBoolean();
+        Checkpoint.readDoubles(in, thresholdUp);
+        Checkpoint.readDoubles(in, thresholdDown);
+        Checkpoint.readDoubles(in, osSizeUp);
+        Checkpoint.readDoubles(in, osSizeDown);
+        Checkpoint.readInts(in, mode);
+        Checkpoint.readLongs(in, extreme);
+        Checkpoint.readLongs(in, prevExtreme);
+        Checkpoint.readLongs(in, reference);
+        Checkpoint.readLongs(in, latestDCprice);
+        Checkpoint.readLongs(in, prevDCprice);
+        Checkpoint.readDoubles(in, osL);
+        Checkpoint.readLongs(in, tPrevOS);
+        Checkpoint.readLongs(in, tPrevDcIE);
+        Checkpoint.readLongs(in, tOS);
+        Checkpoint.readLongs(in, tDcIE);
+        Checkpoint.readLongs(in, tExtreme);
+        Checkpoint.readLongs(in, tOsIE);
+        for (int i = 0; i < numThresholds; i++){
+            expThresholdUp[i] = Math.exp(thresholdUp[i]);
+            expThresholdDown[i] = Math.exp(thresholdDown[i]);
+            expOsSizeUp[i] = Math.exp(osSizeUp[i]);
+            expOsSizeDown[i] = Math.exp(osSizeDown[i]);
+            if (relativeMoves){
+                updateDcTrigger(i);
+                updateOsTrigger(i);
+            } else {
+                updateAbsoluteQuietBand(i);
+            }
+            events[i] = 0;
+        }
+    }
+
+    /**
+     * The same as DcOS.computeSqrtOsDeviation but for the threshold i.
+     */
+    public double computeSqrtOsDeviation(int i){
+        if (mode[i] == 1){
+            return Math.pow(osL[i] - thresholdUp[i], 2);
+        } else {
+            return Math.pow(osL[i] - thresholdDown[i], 2);
+        }
+    }
+
+    public int getNumThresholds() {
+        return numThresholds;
+    }
+
+    public boolean isRelativeMoves() {
+        return relativeMoves;
+    }
+
+    public boolean isInitialized() {
+        return initialized;
+    }
+
+    public int[] getEvents() {
+        return events;
+    }
+
+    public double getThresholdUp(int i) {
+        return thresholdUp[i];
+    }
+
+    public double getThresholdDown(int i) {
+        return thresholdDown[i];
+    }
+
+    public double getOsSizeUp(int i) {
+        return osSizeUp[i];
+    }
+
+    public double getOsSizeDown(int i) {
+        return osSizeDown[i];
+    }
+
+    public int getMode(int i) {
+        return mode[i];
+    }
+
+    public double getOsL(int i) {
+        return osL[i];
+    }
+
+    public long getExtreme(int i) {
+        return extreme[i];
+    }
+
+    public long getPrevExtreme(int i) {
+        return prevExtreme[i];
+    }
+
+    public long getReference(int i) {
+        return reference[i];
+    }
+
+    public long getLatestDCprice(int i) {
+        return latestDCprice[i];
+    }
+
+    public long getPrevDCprice(int i) {
+        return prevDCprice[i];
+    }
+
+    public long gettPrevOS(int i) {
+        return tPrevOS[i];
+    }
+
+    public long gettPrevDcIE(int i) {
+        return tPrevDcIE[i];
+    }
+
+    public long gettOS(int i) {
+        return tOS[i];
+    }
+
+    public long gettDcIE(int i) {
+        return tDcIE[i];
+    }
+
+    public long gettExtreme(int i) {
+        return tExtreme[i];
+    }
+
+    public long gettOsIE(int i) {
+        return tOsIE[i];
+    }
+}
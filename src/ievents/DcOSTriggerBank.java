@@ -0,0 +1,146 @@
+package ievents;
+
+import market.Price;
+import tools.Checkpointable;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Multi-threshold DC/OS engine for wide sweeps (hundreds or thousands of thresholds). The state of the thresholds is
+ * kept in a DcOSBank, so the semantics is exactly the one of the DcOS class. The difference is in how a tick is
+ * dispatched: DcOSBank looks at every threshold, while this class only visits the thresholds which can react.
+ *
+ * Every threshold has a quiet band of prices: a tick with ask above the floor of the band and bid below its ceiling
+ * neither makes a new extreme nor produces a DC (or OS) IE. Floors are kept in a max-heap and ceilings in a min-heap,
+ * therefore for every tick only the thresholds whose band was crossed are taken from the heaps, run and put back with
+ * their new bands. The cost of a tick is proportional to the number of thresholds which changed their state instead
+ * of the number of all thresholds.
+ *
+ * After each call of the run method getEventThresholds() and getEventTypes() hold the indices of the thresholds which
+ * observed an intrinsic event and the types of these events (+-1 for DC, +-2 for OS), in no particular order.
+ */
+
+public class DcOSTriggerBank implements Checkpointable {
+
+    private DcOSBank bank;
+    private int numThresholds;
+    private TriggerHeap floorHeap; // max-heap of quietAskFloor: an ask at or below the top has to be processed
+    private TriggerHeap ceilHeap; // min-heap of quietBidCeil: a bid at or above the top has to be processed
+    private int[] candidates; // thresholds whose band was crossed by the current tick (may contain duplicates)
+    private long[] lastVisit; // number of the tick at which a threshold was processed the last time
+    private long tickNumber;
+    private int[] eventThresholds, eventTypes;
+    private int numEvents;
+
+    /**
+     * The constructor for the symmetric case: thresholds up and down and the sizes of overshoots are equal.
+     * @param thresholds is an array of thresholds (1% == 0.01)
+     * @param initialMode +1 for expected upward DC, -1 for expected downward DC
+     * @param relativeMoves shows if the algorithm should compute relative of absolute price changes
+     */
+    public DcOSTriggerBank(double[] thresholds, int initialMode, boolean relativeMoves){
+        this(thresholds, thresholds, initialMode, thresholds, thresholds, relativeMoves);
+    }
+
+    public DcOSTriggerBank(double[] thresholdsUp, double[] thresholdsDown, int initialMode, double[] osSizesUp, double[] osSizesDown, boolean relativeMoves){
+        bank = new DcOSBank(thresholdsUp, thresholdsDown, initialMode, osSizesUp, osSizesDown, relativeMoves);
+        numThresholds = bank.getNumThresholds();
+        floorHeap = new TriggerHeap(numThresholds, true);
+        ceilHeap = new TriggerHeap(numThresholds, false);
+        candidates = new int[2 * numThresholds];
+        lastVisit = new long[numThresholds];
+        eventThresholds = new int[numThresholds];
+        eventTypes = new int[numThresholds];
+    }
+
+    public int run(Price aPrice){
+        return run(aPrice.getBid(), aPrice.getAsk(), aPrice.getTime());
+    }
+
+    /**
+     * Should be called for every tick.
+     * @param bid is the bid of a new price
+     * @param ask is the ask of a new price
+     * @param time is the time of a new price in milliseconds
+     * @return number of thresholds which observed an intrinsic event at this price
+     */
+    public int run(long bid, long ask, long time){
+        tickNumber++;
+        numEvents = 0;
+        if (!bank.isInitialized()){
+            bank.run(bid, ask, time);
+            rebuildHeaps();
+            return 0;
+        }
+        int numCandidates = floorHeap.collect(ask, candidates, 0);
+        numCandidates = ceilHeap.collect(bid, candidates, numCandidates);
+        for (int k = 0; k < numCandidates; k++){
+            int i = candidates[k];
+            if (lastVisit[i] == tickNumber){
+                continue;
+            }
+            lastVisit[i] = tickNumber;
+            int event = bank.runOne(i, bid, ask, time);
+            floorHeap.update(i, bank.getQuietAskFloor(i));
+            ceilHeap.update(i, bank.getQuietBidCeil(i));
+            if (event != 0){
+                eventThresholds[numEvents] = i;
+                eventTypes[numEvents] = event;
+                numEvents++;
+            }
+        }
+        return numEvents;
+    }
+
+    public void writeState(DataOutput out) throws IOException {
+        bank.writeState(out);
+    }
+
+    /**
+     * Restores the state of the bank and rebuilds the heaps of trigger prices.
+     */
+    public void readState(DataInput in) throws IOException {
+        bank.readState(in);
+        numEvents = 0;
+        if (bank.isInitialized()){
+            rebuildHeaps();
+        }
+    }
+
+    private void rebuildHeaps(){
+        double[] floors = new double[numThresholds];
+        double[] ceils = new double[numThresholds];
+        for (int i = 0; i < numThresholds; i++){
+            floors[i] = bank.getQuietAskFloor(i);
+            ceils[i] = bank.getQuietBidCeil(i);
+        }
+        floorHeap.build(floors);
+        ceilHeap.build(ceils);
+    }
+
+    /**
+     * @return the bank which holds the state of all thresholds. It can be used to read the state (osL, times of the
+     * tipping points...) but must not be run directly.
+     */
+    public DcOSBank getBank() {
+        return bank;
+    }
+
+    public int getNumThresholds() {
+        return numThresholds;
+    }
+
+    public int getNumEvents() {
+        return numEvents;
+    }
+
+    public int[] getEventThresholds() {
+        return eventThresholds;
+    }
+
+    public int[] getEventTypes() {
+        return eventTypes;
+    }
+}
@@ -0,0 +1,10 @@
+package ievents;
+
+/**
+ * Receives intrinsic events as flat records, for example when they are replayed from an IEventStore. The meaning of
+ * the fields depends on the type of the event, see IEventRing.
+ */
+public interface IEventHandler {
+
+    void onEvent(int type, long time, long price, long extreme, long tExtreme, double osL, long prevDcTime);
+}
@@ -0,0 +1,128 @@
+package ievents;
+
+/**
+ * Preallocated ring buffer of intrinsic events. A DcOS instance publishes every observed event here as a flat record,
+ * so that several analyses can read the same stream of events without asking the DcOS instance for a dozen of values
+ * and without creating any objects.
+ *
+ * Every record has a sequence number: 0 for the first published event, 1 for the second and so on. A consumer keeps
+ * the sequence number of the next event it wants to read and compares it with getNextSequence(). Only the latest
+ * "capacity" events are kept: a consumer which falls behind more than that loses the oldest events, which can be
+ * checked by isAvailable(sequence).
+ *
+ * The record of a DC IE (type +1 or -1) holds:
+ *  time - time of the DC IE, price - price of the DC IE, extreme - the extreme which ended the previous overshoot,
+ *  tExtreme - time of that extreme, osL - length of the previous overshoot, prevDcTime - time of the previous DC IE.
+ * The record of an OS IE (type +2 or -2) holds:
+ *  time - time of the OS IE, price - the new reference (equal to the extreme), extreme - the current extreme,
+ *  tExtreme - time of the current extreme, osL - length of the previous overshoot, prevDcTime - time of the DC IE
+ *  which started the current overshoot.
+ *
+ * The class is not thread-safe: producer and consumers are supposed to run in the same thread.
+ */
+
+public class IEventRing {
+
+    private final int capacity;
+    private final int mask;
+    private final int[] type;
+    private final long[] time, price, extreme, tExtreme, prevDcTime;
+    private final double[] osL;
+    private long nextSequence; // sequence number of the next record to publish
+
+    private static final int MAX_CAPACITY = 1 << 30; // the largest power of two of an int
+
+    /**
+     * @param minCapacity is the minimal number of records kept in the ring. It is rounded up to a power of two, so it
+     *                    should not be larger than 2^30.
+     */
+    public IEventRing(int minCapacity){
+        if (minCapacity > MAX_CAPACITY){
+            throw new IllegalArgumentException("The capacity of the ring should not be larger than 2^30: " + minCapacity);
+        }
+        int size = 1;
+        while (size < minCapacity){
+            size <<= 1;
+        }
+        capacity = size;
+        mask = size - 1;
+        type = new int[size];
+        time = new long[size];
+        price = new long[size];
+        extreme = new long[size];
+        tExtreme = new long[size];
+        prevDcTime = new long[size];
+        osL = new double[size];
+    }
+
+    /**
+     * Adds a new record to the ring, overwriting the oldest one if the ring is full.
+     * @return the sequence number of the record
+     */
+    public long publish(int type, long time, long price, long extreme, long tExtreme, double osL, long prevDcTime){
+        long sequence = nextSequence;
+        int index = (int) sequence & mask;
+        this.type[index] = type;
+        this.time[index] = time;
+        this.price[index] = price;
+        this.extreme[index] = extreme;
+        this.tExtreme[index] = tExtreme;
+        this.osL[index] = osL;
+        this.prevDcTime[index] = prevDcTime;
+        nextSequence = sequence + 1;
+        return sequence;
+    }
+
+    /**
+     * @return true if the record with the given sequence number has been published and is not overwritten yet
+     */
+    public boolean isAvailable(long sequence){
+        return sequence < nextSequence && sequence >= nextSequence - capacity;
+    }
+
+    /**
+     * @return sequence number of the next record to publish, which is also the total number of published records
+     */
+    public long getNextSequence() {
+        return nextSequence;
+    }
+
+    /**
+     * @return sequence number of the oldest record still kept in the ring
+     */
+    public long getOldestSequence() {
+        return Math.max(0, nextSequence - capacity);
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public int getType(long sequence) {
+        return type[(int) sequence & mask];
+    }
+
+    public long getTime(long sequence) {
+        return time[(int) sequence & mask];
+    }
+
+    public long getPrice(long sequence) {
+        return price[(int) sequence & mask];
+    }
+
+    public long getExtreme(long sequence) {
+        return extreme[(int) sequence & mask];
+    }
+
+    public long gettExtreme(long sequence) {
+        return tExtreme[(int) sequence & mask];
+    }
+
+    public double getOsL(long sequence) {
+        return osL[(int) sequence & mask];
+    }
+
+    public long getPrevDcTime(long sequence) {
+        return prevDcTime[(int) sequence & mask];
+    }
+}
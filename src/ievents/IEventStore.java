@@ -0,0 +1,370 @@
+package ievents;
+
+import market.TickHandler;
+import tools.TickParser;
+import tools.Tools;
+
+import java.io.*;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.zip.CRC32;
+
+/**
+ * Created by author.
+ * On-disk cache of the intrinsic events of a data set, so that an analysis which only needs DC and OS events (a
+ * seasonality with another length of bins, for example) can be repeated without running DcOS over all ticks again.
+ *
+ * A store belongs to one data set (identified by a fingerprint of the tick file), one configuration of the parser (the
+ * layout of the lines, the number of decimals, the time zone of the timestamps and the TickFilter, identified by a
+ * fingerprint of TickParser.getSettings()) and one configuration of DcOS (thresholds, sizes of overshoots, initial
+ * mode, relative or absolute moves); all of them are a part of the name of the file, see fileFor. The file has a
+ * fixed-size header and fixed-size records appended in the order of the events:
+ *
+ *  header: MAGIC, VERSION, fingerprint, parserFingerprint, thresholdUp, thresholdDown, osSizeUp, osSizeDown,
+ *          initialMode, relativeMoves, number of events, number of ticks, time of the first tick, time of the last tick
+ *  record: type (int), time, price, extreme, tExtreme (longs), osL (double), prevDcTime (long)
+ *  trailer: length (int) and bytes of the state of DcOS after the last tick (DcOS.writeState)
+ *
+ * The records have the layout of IEventRing. With the trailer an analysis which replays the store ends with its DcOS
+ * instance in the same state as after running over the ticks (see restoreFinalState), so it can go on with newer ticks
+ * or be saved to a Checkpoint. A store is written by a Writer under a temporary name and renamed at
+ * close(), so an interrupted run never leaves an incomplete store behind. It is read by memory-mapping the file.
+ *
+ * Typical usage:
+ *  IEventStore store = IEventStore.openOrBuild("Cache", fileName, parser, new DcOS(delta, delta, 1, delta, delta, true));
+ *  seasonality.replay(store);
+ */
+public class IEventStore {
+
+    private static final int MAGIC = 0x44434945; // "DCIE"
+    private static final int VERSION = 3;
+    private static final int HEADER_SIZE = 96;
+    static final int RECORD_SIZE = 52;
+    private static final int SEGMENT_BITS = 24; // records per mapped segment, 2^24 * 52 bytes < 2 GB
+    private static final long SEGMENT_MASK = (1L << SEGMENT_BITS) - 1;
+
+    private final long fingerprint;
+    private final long parserFingerprint;
+    private final double thresholdUp, thresholdDown, osSizeUp, osSizeDown;
+    private final int initialMode;
+    private final boolean relativeMoves;
+    private final long numEvents, numTicks, firstTickTime, lastTickTime;
+    private final MappedByteBuffer[] segments;
+    private final byte[] finalState; // the state of DcOS after the last tick
+
+    private IEventStore(File file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r"); FileChannel channel = raf.getChannel()) {
+            if (raf.readInt() != MAGIC || raf.readInt() != VERSION){
+                throw new IOException("Not an event store: " + file);
+            }
+            fingerprint = raf.readLong();
+            parserFingerprint = raf.readLong();
+            thresholdUp = raf.readDouble();
+            thresholdDown = raf.readDouble();
+            osSizeUp = raf.readDouble();
+            osSizeDown = raf.readDouble();
+            initialMode = raf.readInt();
+            relativeMoves = raf.readInt() != 0;
+            numEvents = raf.readLong();
+            numTicks = raf.readLong();
+            firstTickTime = raf.readLong();
+            lastTickTime = raf.readLong();
+            long recordsEnd = HEADER_SIZE + numEvents * RECORD_SIZE;
+            if (channel.size() < recordsEnd + 4){
+                throw new IOException("Truncated event store: " + file);
+            }
+            raf.seek(recordsEnd);
+            int stateLength = raf.readInt();
+            if (stateLength < 0 || channel.size() != recordsEnd + 4 + stateLength){
+                throw new IOException("Truncated event store: " + file);
+            }
+            finalState = new byte[stateLength];
+            raf.readFully(finalState);
+            segments = new MappedByteBuffer[(int) ((numEvents + SEGMENT_MASK) >>> SEGMENT_BITS)];
+            for (int s = 0; s < segments.length; s++){
+                long first = (long) s << SEGMENT_BITS;
+                long count = Math.min(numEvents - first, 1L << SEGMENT_BITS);
+                segments[s] = channel.map(FileChannel.MapMode.READ_ONLY, HEADER_SIZE + first * RECORD_SIZE, count * RECORD_SIZE);
+            }
+        }
+    }
+
+    /**
+     * @return the name of the store of the data set, of the settings of the parser and of the configuration of the
+     * given (not yet used) DcOS instance
+     */
+    public static File fileFor(String cacheDir, long fingerprint, TickParser parser, DcOS dcOS){
+        return new File(cacheDir, String.format(Locale.ROOT, "%016x_%08x_%s_%s_%s_%s_%d_%s.iev", fingerprint,
+                parserFingerprint(parser), dcOS.getThresholdUp(), dcOS.getThresholdDown(), dcOS.getOsSizeUp(), dcOS.getOsSizeDown(), dcOS.getMode(),
+                dcOS.isRelativeMoves() ? "rel" : "abs"));
+    }
+
+    /**
+     * @return the store or null if it does not exist or was written by an older version (openOrBuild replaces it then)
+     */
+    public static IEventStore open(String cacheDir, long fingerprint, TickParser parser, DcOS dcOS) throws IOException {
+        File file = fileFor(cacheDir, fingerprint, parser, dcOS);
+        if (!file.exists() || !isCurrentVersion(file)){
+            return null;
+        }
+        IEventStore store = new IEventStore(file);
+        store.checkMatches(dcOS, parser);
+        return store;
+    }
+
+    private static boolean isCurrentVersion(File file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+            return file.length() >= HEADER_SIZE && in.readInt() == MAGIC && in.readInt() == VERSION;
+        }
+    }
+
+    /**
+     * Opens the store of the tick file and of the configuration of the given DcOS instance. If there is no such store
+     * yet, the tick file is parsed once, the events are found by the given instance and saved.
+     * @param cacheDir is the directory of the stores, it is created if needed
+     * @param dataFileName is the tick file (gzipped or not)
+     * @param parser describes the layout of the lines and filters the ticks, a store of another parser is not used
+     * @param dcOS is a new instance of DcOS which defines the configuration
+     */
+    public static IEventStore openOrBuild(String cacheDir, String dataFileName, TickParser parser, DcOS dcOS) throws IOException {
+        long fingerprint = fingerprint(dataFileName);
+        IEventStore store = open(cacheDir, fingerprint, parser, dcOS);
+        if (store != null){
+            return store;
+        }
+        File file = fileFor(cacheDir, fingerprint, parser, dcOS); // before the run, the mode of dcOS changes during it
+        Tools.CheckDirectory(cacheDir);
+        Writer writer = new Writer(file, fingerprint, parserFingerprint(parser), dcOS);
+        try (InputStream in = Tools.openTickStream(dataFileName)) {
+            new TickParser(parser).parse(in, writer);
+        } catch (IOException | RuntimeException ex){
+            writer.discard();
+            throw ex;
+        }
+        writer.close();
+        return new IEventStore(file);
+    }
+
+    /**
+     * Fingerprint of a data file: its length and the CRC32 of its first and last megabyte. It changes when the file is
+     * replaced by another sample, but does not need reading the whole file.
+     */
+    public static long fingerprint(String dataFileName) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(dataFileName, "r")) {
+            long length = file.length();
+            int part = (int) Math.min(length, 1 << 20);
+            byte[] bytes = new byte[part];
+            CRC32 crc = new CRC32();
+            file.readFully(bytes);
+            crc.update(bytes);
+            file.seek(length - part);
+            file.readFully(bytes);
+            crc.update(bytes);
+            return (length << 32) ^ crc.getValue();
+        }
+    }
+
+    /**
+     * Fingerprint of the settings of a parser (TickParser.getSettings()): the CRC32 of the text.
+     */
+    public static long parserFingerprint(TickParser parser){
+        CRC32 crc = new CRC32();
+        crc.update(parser.getSettings().getBytes(StandardCharsets.UTF_8));
+        return crc.getValue();
+    }
+
+    /**
+     * Gives all events to the handler in their order.
+     */
+    public void replay(IEventHandler handler){
+        for (long i = 0; i < numEvents; i++){
+            MappedByteBuffer segment = segments[(int) (i >>> SEGMENT_BITS)];
+            int offset = (int) (i & SEGMENT_MASK) * RECORD_SIZE;
+            handler.onEvent(segment.getInt(offset), segment.getLong(offset + 4), segment.getLong(offset + 12),
+                    segment.getLong(offset + 20), segment.getLong(offset + 28), segment.getDouble(offset + 36),
+                    segment.getLong(offset + 44));
+        }
+    }
+
+    /**
+     * The same as DcOS.computeSqrtOsDeviation at the moment of a DC IE of the given type. DcOS has already switched its
+     * mode then, so after an upward DC IE (mode -1) the threshold down is used and vice versa.
+     */
+    public double computeSqrtOsDeviation(int type, double osL){
+        return Math.pow(osL - (type == 1 ? thresholdDown : thresholdUp), 2);
+    }
+
+    /**
+     * Puts the given instance into the state the DcOS instance which built the store had after the last tick. The
+     * replay methods of the analyses call it at the end, so that run can go on with the ticks after the data set and
+     * writeState saves a state consistent with the replayed events.
+     * @param dcOS is an instance of the same configuration (see checkMatches)
+     */
+    public void restoreFinalState(DcOS dcOS){
+        try {
+            dcOS.readState(new DataInputStream(new ByteArrayInputStream(finalState)));
+        } catch (IOException ex){
+            throw new UncheckedIOException(ex); // cannot happen for a complete store, the bytes are in memory
+        }
+    }
+
+    /**
+     * @return true if the events of the store are the ones the given (not yet used) DcOS instance would find
+     */
+    public boolean matches(DcOS dcOS){
+        return dcOS.getThresholdUp() == thresholdUp && dcOS.getThresholdDown() == thresholdDown
+                && dcOS.getOsSizeUp() == osSizeUp && dcOS.getOsSizeDown() == osSizeDown
+                && dcOS.getMode() == initialMode && dcOS.isRelativeMoves() == relativeMoves;
+    }
+
+    /**
+     * @return true if the store was built from the ticks given by a parser with the same settings
+     */
+    public boolean matches(TickParser parser){
+        return parserFingerprint(parser) == parserFingerprint;
+    }
+
+    /**
+     * Checks that an analysis which replays the store uses the same configuration of DcOS.
+     */
+    public void checkMatches(DcOS dcOS){
+        if (!matches(dcOS)){
+            throw new IllegalArgumentException("The event store was built with another configuration of DcOS");
+        }
+    }
+
+    /**
+     * Checks that the store was built with the same configuration of DcOS and from the ticks of a parser with the same
+     * settings (the layout, the decimals, the time zone and the filter).
+     */
+    public void checkMatches(DcOS dcOS, TickParser parser){
+        checkMatches(dcOS);
+        if (!matches(parser)){
+            throw new IllegalArgumentException("The event store was built with other settings of the parser: " + parser.getSettings());
+        }
+    }
+
+    public long getFingerprint() {
+        return fingerprint;
+    }
+
+    public long getParserFingerprint() {
+        return parserFingerprint;
+    }
+
+    public long getNumEvents() {
+        return numEvents;
+    }
+
+    public long getNumTicks() {
+        return numTicks;
+    }
+
+    public long getFirstTickTime() {
+        return firstTickTime;
+    }
+
+    public long getLastTickTime() {
+        return lastTickTime;
+    }
+
+    /**
+     * Runs a DcOS instance on ticks and appends every event to a new store.
+     */
+    public static class Writer implements TickHandler, Closeable {
+
+        private final File file, tmpFile;
+        private final DcOS dcOS;
+        private final IEventRing ring = new IEventRing(16);
+        private final DataOutputStream out;
+        private long numEvents, numTicks, firstTickTime, lastTickTime;
+
+        /**
+         * @param file is the store to create
+         * @param fingerprint is the fingerprint of the data set
+         * @param parserFingerprint is the fingerprint of the settings of the parser of the ticks (see parserFingerprint)
+         * @param dcOS is a new instance which finds the events, it is used by the writer
+         */
+        public Writer(File file, long fingerprint, long parserFingerprint, DcOS dcOS) throws IOException {
+            this.file = file;
+            this.tmpFile = new File(file.getPath() + ".tmp");
+            this.dcOS = dcOS;
+            dcOS.setEventRing(ring);
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile), 1 << 16));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(fingerprint);
+            out.writeLong(parserFingerprint);
+            out.writeDouble(dcOS.getThresholdUp());
+            out.writeDouble(dcOS.getThresholdDown());
+            out.writeDouble(dcOS.getOsSizeUp());
+            out.writeDouble(dcOS.getOsSizeDown());
+            out.writeInt(dcOS.getMode());
+            out.writeInt(dcOS.isRelativeMoves() ? 1 : 0);
+            out.writeLong(0); // number of events, of ticks and the times of the first and last tick are written at close()
+            out.writeLong(0);
+            out.writeLong(0);
+            out.writeLong(0);
+        }
+
+        @Override
+        public void onTick(long bid, long ask, long time){
+            if (numTicks == 0){
+                firstTickTime = time;
+            }
+            lastTickTime = time;
+            numTicks++;
+            if (dcOS.run(bid, ask, time) != 0){
+                long sequence = ring.getNextSequence() - 1;
+                try {
+                    out.writeInt(ring.getType(sequence));
+                    out.writeLong(ring.getTime(sequence));
+                    out.writeLong(ring.getPrice(sequence));
+                    out.writeLong(ring.getExtreme(sequence));
+                    out.writeLong(ring.gettExtreme(sequence));
+                    out.writeDouble(ring.getOsL(sequence));
+                    out.writeLong(ring.getPrevDcTime(sequence));
+                } catch (IOException ex){
+                    throw new UncheckedIOException(ex);
+                }
+                numEvents++;
+            }
+        }
+
+        /**
+         * Appends the final state of DcOS, completes the header and gives the store its final name.
+         */
+        @Override
+        public void close() throws IOException {
+            dcOS.setEventRing(null);
+            ByteArrayOutputStream state = new ByteArrayOutputStream(256);
+            dcOS.writeState(new DataOutputStream(state));
+            out.writeInt(state.size());
+            state.writeTo(out);
+            out.close();
+            try (RandomAccessFile raf = new RandomAccessFile(tmpFile, "rw")) {
+                raf.seek(HEADER_SIZE - 32);
+                raf.writeLong(numEvents);
+                raf.writeLong(numTicks);
+                raf.writeLong(firstTickTime);
+                raf.writeLong(lastTickTime);
+            }
+            Tools.replaceFile(tmpFile, file);
+        }
+
+        /**
+         * Deletes the incomplete store, for example when reading the ticks failed.
+         */
+        public void discard() throws IOException {
+            out.close();
+            dcOS.setEventRing(null);
+            tmpFile.delete();
+        }
+
+        public long getNumEvents() {
+            return numEvents;
+        }
+    }
+}
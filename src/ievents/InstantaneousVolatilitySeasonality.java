@@ -1,8 +1,14 @@
 package ievents;
 
 import market.Price;
+import org.joda.time.DateTimeZone;
+import tools.Checkpoint;
+import tools.Checkpointable;
+import tools.WeekBinCalendar;
 
-import static tools.Tools.findBinId;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 
 
 /**
@@ -20,7 +26,7 @@ import static tools.Tools.findBinId;
  *  5) profit.
  */
 
-public class InstantaneousVolatilitySeasonality {
+public class InstantaneousVolatilitySeasonality implements Checkpointable {
 
     private static final long MLS_WEAK = 604800000L; // number of milliseconds in a week
     private static final long MLS_YEAR = 31536000000L; // number of milliseconds in a year
@@ -33,6 +39,7 @@ public class InstantaneousVolatilitySeasonality {
     private double threshold;
     private boolean firstTick;
     private long[] timestampsOfBins;
+    private WeekBinCalendar calendar; // finds the bins of the DC IEs
 
     /**
      * @param threshold is size of the threshold used to find the number of DC
@@ -44,31 +51,88 @@ public class InstantaneousVolatilitySeasonality {
         dCoS = new DcOS(threshold, threshold, 1, threshold, threshold, true);
         nBinsInWeek = MLS_WEAK / lenOfBin;
         this.timestampsOfBins = createTimestampsOfBins(lenOfBin);
+        calendar = new WeekBinCalendar(timestampsOfBins);
         activityList = new double[(int) nBinsInWeek];
         dcCountList = new double[(int) nBinsInWeek];
         firstTick = true;
     }
 
+    /**
+     * Sets the time zone in which the weeks begin (Monday 00:00) and the bins are counted, for example
+     * DateTimeZone.forID("America/New_York"). The default time zone is used otherwise.
+     */
+    public void setTimeZone(DateTimeZone zone){
+        calendar = new WeekBinCalendar(timestampsOfBins, zone);
+    }
+
     /**
      * This method should be called for every new price. It checks whether the algo finds a new DC IE at the given
      * price or not and adds +1 to the number of DC in the proper bin.
      * @param aPrice is every new price.
      */
     public void run(Price aPrice){
+        run(aPrice.getBid(), aPrice.getAsk(), aPrice.getTime());
+    }
+
+    public void run(long bid, long ask, long time){
         if (firstTick){
-            dateFirstTick = aPrice.getTime();
+            dateFirstTick = time;
             firstTick = false;
         } else {
-            dateLastTick = aPrice.getTime();
+            dateLastTick = time;
         }
-        int iEvent = dCoS.run(aPrice);
+        int iEvent = dCoS.run(bid, ask, time);
         if (iEvent == 1 || iEvent == -1){
-            long dcTime = aPrice.getTime();
-            int binId = findBinId(dcTime, timestampsOfBins);
+            long dcTime = time;
+            int binId = calendar.findBinId(dcTime);
             dcCountList[binId] += 1;
         }
     }
 
+    /**
+     * Does the same as run for all ticks of a data set, but takes the intrinsic events from a store instead of running
+     * DcOS again. Should be called instead of run, not after it; afterwards DcOS is in its state after the last tick of
+     * the data set, so run can go on with newer ticks and writeState saves a consistent state.
+     * @param store is a store built with the same configuration of DcOS as the one of this instance
+     */
+    public void replay(IEventStore store){
+        store.checkMatches(dCoS);
+        store.replay((type, time, price, extreme, tExtreme, osL, prevDcTime) -> {
+            if (type == 1 || type == -1){
+                int binId = calendar.findBinId(time);
+                dcCountList[binId] += 1;
+            }
+        });
+        if (store.getNumTicks() > 0){
+            dateFirstTick = store.getFirstTickTime();
+            firstTick = false;
+        }
+        if (store.getNumTicks() > 1){
+            dateLastTick = store.getLastTickTime();
+        }
+        store.restoreFinalState(dCoS);
+    }
+
+    /**
+     * Saves the numbers of DCs collected in every bin, the dates of the first and the last tick and the state of the
+     * DcOS instance.
+     */
+    public void writeState(DataOutput out) throws IOException {
+        out.writeBoolean(firstTick);
+        out.writeLong(dateFirstTick);
+        out.writeLong(dateLastTick);
+        Checkpoint.writeDoubles(out, dcCountList);
+        dCoS.writeState(out);
+    }
+
+    public void readState(DataInput in) throws IOException {
+        firstTick = in.readBoolean();
+        dateFirstTick = in.readLong();
+        dateLastTick = in.readLong();
+        Checkpoint.readDoubles(in, dcCountList);
+        dCoS.readState(in);
+    }
+
     /**
      * Creates a list of timestamps of all bins in a week
      * @param lenOfBin len in milliseconds of a bin
@@ -93,16 +157,19 @@ public class InstantaneousVolatilitySeasonality {
     }
 
     /**
-     * Computes volatility seasonality array using the formula \sigma = \delta \sqrt( N_{DC} / T )
+     * Computes volatility seasonality array using the formula \sigma = \delta \sqrt( N_{DC} / T ), where T is the
+     * real length of the bin averaged over the weeks of the sample (shorter or longer than lenOfBin around DST
+     * transitions)
      */
     private void numDCtoVolatility(){
         double numWeeksInWholeSample = (double) (dateLastTick - dateFirstTick) / MLS_WEAK;
         for (int i = 0; i < dcCountList.length; i++){
             dcCountList[i] /= numWeeksInWholeSample; // find average num events per given bin // TODO: add median option
         }
-        double numYearsInBin = (double) lenOfBin / MLS_YEAR;
+        double[] binLengths = calendar.getAverageBinLengths(dateFirstTick, dateLastTick);
         for (int i = 0; i < activityList.length; i++){
-            activityList[i] = threshold * Math.sqrt((dcCountList[i]) / numYearsInBin) ;
+            double numYearsInBin = binLengths[i] / MLS_YEAR;
+            activityList[i] = numYearsInBin > 0 ? threshold * Math.sqrt((dcCountList[i]) / numYearsInBin) : 0;
         }
     }
 
@@ -0,0 +1,204 @@
+package ievents;
+
+import market.Price;
+import org.joda.time.DateTimeZone;
+import tools.Checkpoint;
+import tools.Checkpointable;
+import tools.WeekBinCalendar;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Created by author.
+ * Weekly seasonality at several bin lengths from one pass over the ticks. InstantaneousVolatilitySeasonality and
+ * RealizedVolatilitySeasonality have to be run once per length of bin (1 min, 5 min, 10 min, 1 hour...); this class
+ * collects the number of DC IEs and the sum of the variability of overshoots in the finest bins only and gets any
+ * coarser bin by summing its children. The bins nest: a DC IE in the fine bin i is in the coarse bin i / factor both
+ * for the bins of InstantaneousVolatilitySeasonality (ceil(m / len) - 1) and for the ones of
+ * RealizedVolatilitySeasonality (floor(m / len)).
+ *
+ * After the run, instantaneousVolatility(lenOfBin) and realizedVolatility(lenOfBin) give the arrays the finish()
+ * methods of these classes would give, for every length of bin which is a multiple of the finest one and divides the
+ * week. The only difference: RealizedVolatilitySeasonality does not add the DC IEs of its last bin, here all of them are
+ * counted.
+ *
+ *  MultiResolutionSeasonality seasonality = new MultiResolutionSeasonality(threshold, 60000L);
+ *  ... seasonality.run(aPrice) for every price ...
+ *  for (long lenOfBin : new long[]{60000L, 300000L, 600000L, 3600000L}){
+ *      double[] instantaneous = seasonality.instantaneousVolatility(lenOfBin);
+ *      double[] realized = seasonality.realizedVolatility(lenOfBin);
+ *  }
+ */
+public class MultiResolutionSeasonality implements Checkpointable {
+
+    private static final long MLS_WEAK = 604800000L; // number of milliseconds in a week
+    private static final long MLS_YEAR = 31536000000L; // number of milliseconds in a year
+    private final double threshold;
+    private final long finestLenOfBin; // length (in milliseconds) of the finest bins
+    private final DcOS dCoS; // an instance of the DcOS class which is used to compute all interested parameters.
+    private final double[] dcCountList; // number of DC IEs in every finest bin (bins of InstantaneousVolatilitySeasonality)
+    private final double[] sqrtOsDeviationList; // sum of the variability of overshoots in every finest bin (bins of RealizedVolatilitySeasonality)
+    private long[] timestampsOfBins;
+    private WeekBinCalendar calendar; // finds the bins of the DC IEs
+    private long dateFirstTick, dateLastTick; // the date in milliseconds of the first and the last tick in the sample
+    private boolean firstTick;
+
+    /**
+     * @param threshold is size of the threshold used to find DC IEs and overshoots
+     * @param finestLenOfBin is length (in milliseconds) of the finest bin, it should divide the week, for example 1 min
+     */
+    public MultiResolutionSeasonality(double threshold, long finestLenOfBin){
+        if (finestLenOfBin <= 0 || MLS_WEAK % finestLenOfBin != 0){
+            throw new IllegalArgumentException("The length of bin should divide the week: " + finestLenOfBin);
+        }
+        this.threshold = threshold;
+        this.finestLenOfBin = finestLenOfBin;
+        dCoS = new DcOS(threshold, threshold, 1, threshold, threshold, true);
+        int nBinsInWeek = (int) (MLS_WEAK / finestLenOfBin);
+        dcCountList = new double[nBinsInWeek];
+        sqrtOsDeviationList = new double[nBinsInWeek];
+        timestampsOfBins = new long[nBinsInWeek];
+        for (int i = 0; i < nBinsInWeek; i++){
+            timestampsOfBins[i] = (i + 1) * finestLenOfBin;
+        }
+        calendar = new WeekBinCalendar(timestampsOfBins);
+        firstTick = true;
+    }
+
+    /**
+     * Sets the time zone in which the weeks begin (Monday 00:00) and the bins are counted, for example
+     * DateTimeZone.forID("America/New_York"). The default time zone is used otherwise.
+     */
+    public void setTimeZone(DateTimeZone zone){
+        calendar = new WeekBinCalendar(timestampsOfBins, zone);
+    }
+
+    /**
+     * This method should be called for every new price. It checks whether the algo finds a new DC IE at the given
+     * price or not and adds it to its finest bins.
+     * @param aPrice is every new price.
+     */
+    public void run(Price aPrice){
+        run(aPrice.getBid(), aPrice.getAsk(), aPrice.getTime());
+    }
+
+    public void run(long bid, long ask, long time){
+        if (firstTick){
+            dateFirstTick = time;
+            firstTick = false;
+        } else {
+            dateLastTick = time;
+        }
+        int iEvent = dCoS.run(bid, ask, time);
+        if (iEvent == 1 || iEvent == -1){
+            registerDC(time, dCoS.computeSqrtOsDeviation());
+        }
+    }
+
+    /**
+     * Does the same as run for all ticks of a data set, but takes the intrinsic events from a store instead of running
+     * DcOS again. Should be called instead of run, not after it; afterwards DcOS is in its state after the last tick of
+     * the data set, so run can go on with newer ticks and writeState saves a consistent state.
+     * @param store is a store built with the same configuration of DcOS as the one of this instance
+     */
+    public void replay(IEventStore store){
+        store.checkMatches(dCoS);
+        store.replay((type, time, price, extreme, tExtreme, osL, prevDcTime) -> {
+            if (type == 1 || type == -1){
+                registerDC(time, store.computeSqrtOsDeviation(type, osL));
+            }
+        });
+        if (store.getNumTicks() > 0){
+            dateFirstTick = store.getFirstTickTime();
+            firstTick = false;
+        }
+        if (store.getNumTicks() > 1){
+            dateLastTick = store.getLastTickTime();
+        }
+        store.restoreFinalState(dCoS);
+    }
+
+    private void registerDC(long dcTime, double sqrtOsDeviation){
+        dcCountList[calendar.findBinId(dcTime)] += 1;
+        sqrtOsDeviationList[(int) (calendar.millisFromMonday(dcTime) / finestLenOfBin)] += sqrtOsDeviation;
+    }
+
+    /**
+     * Sums the finest bins into bins of the given length.
+     */
+    private double[] aggregate(double[] finest, long lenOfBin){
+        if (lenOfBin <= 0 || lenOfBin % finestLenOfBin != 0 || MLS_WEAK % lenOfBin != 0){
+            throw new IllegalArgumentException("The length of bin should be a multiple of " + finestLenOfBin + " and divide the week: " + lenOfBin);
+        }
+        int factor = (int) (lenOfBin / finestLenOfBin);
+        double[] coarse = new double[finest.length / factor];
+        for (int i = 0; i < finest.length; i++){
+            coarse[i / factor] += finest[i];
+        }
+        return coarse;
+    }
+
+    /**
+     * @return number of DC IEs in every bin of the given length, summed over all weeks
+     */
+    public double[] getDcCounts(long lenOfBin){
+        return aggregate(dcCountList, lenOfBin);
+    }
+
+    /**
+     * @return the same array as InstantaneousVolatilitySeasonality.finish() with the given length of bin:
+     * \sigma = \delta \sqrt( N_{DC} / T ), T is the real length of the bin averaged over the weeks of the sample
+     */
+    public double[] instantaneousVolatility(long lenOfBin){
+        double[] volatility = aggregate(dcCountList, lenOfBin);
+        double[] binLengths = aggregate(calendar.getAverageBinLengths(dateFirstTick, dateLastTick), lenOfBin);
+        double numWeeksInWholeSample = (double) (dateLastTick - dateFirstTick) / MLS_WEAK;
+        for (int i = 0; i < volatility.length; i++){
+            double numYearsInBin = binLengths[i] / MLS_YEAR;
+            volatility[i] = numYearsInBin > 0 ? threshold * Math.sqrt((volatility[i] / numWeeksInWholeSample) / numYearsInBin) : 0;
+        }
+        return volatility;
+    }
+
+    /**
+     * @return the same array as RealizedVolatilitySeasonality.finish() with the given length of bin: the annualized
+     * square root of the average variability of overshoots
+     */
+    public double[] realizedVolatility(long lenOfBin){
+        double[] volatility = aggregate(sqrtOsDeviationList, lenOfBin);
+        double[] binLengths = aggregate(calendar.getAverageBinLengths(dateFirstTick, dateLastTick), lenOfBin);
+        double numWeeksInWholeSample = (double) (dateLastTick - dateFirstTick) / MLS_WEAK;
+        for (int i = 0; i < volatility.length; i++){
+            double numYearsInBin = binLengths[i] / MLS_YEAR;
+            volatility[i] = numYearsInBin > 0 ? Math.sqrt(volatility[i] / numWeeksInWholeSample) / Math.sqrt(numYearsInBin) : 0;
+        }
+        return volatility;
+    }
+
+    /**
+     * Saves the finest bins, the dates of the first and the last tick and the state of the DcOS instance.
+     */
+    public void writeState(DataOutput out) throws IOException {
+        out.writeBoolean(firstTick);
+        out.writeLong(dateFirstTick);
+        out.writeLong(dateLastTick);
+        Checkpoint.writeDoubles(out, dcCountList);
+        Checkpoint.writeDoubles(out, sqrtOsDeviationList);
+        dCoS.writeState(out);
+    }
+
+    public void readState(DataInput in) throws IOException {
+        firstTick = in.readBoolean();
+        dateFirstTick = in.readLong();
+        dateLastTick = in.readLong();
+        Checkpoint.readDoubles(in, dcCountList);
+        Checkpoint.readDoubles(in, sqrtOsDeviationList);
+        dCoS.readState(in);
+    }
+
+    public long getFinestLenOfBin() {
+        return finestLenOfBin;
+    }
+}
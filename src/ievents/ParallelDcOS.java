@@ -0,0 +1,133 @@
+package ievents;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Parallel version of the DcOS algorithm for long single-instrument samples. The result is exactly the same sequence
+ * of intrinsic events (indices of ticks and types of events) as the one of a serial DcOS.runBatch pass.
+ *
+ * The ticks are split into K chunks which are processed on separate threads. Every chunk but the first one starts from
+ * a provisional (not initialized) DcOS instance since the real state at its beginning is not known yet. Afterwards the
+ * chunks are stitched one by one: the beginning of a chunk is replayed from the real final state of the previous chunk
+ * until the replay registers a DC IE at the same tick and of the same type as the provisional pass did. At that moment
+ * both instances have identical extreme, reference, mode and trigger prices, therefore all following events of the
+ * provisional pass are the real ones. Since the state of DcOS is tiny, this typically happens after a couple of DCs,
+ * so the replayed part is negligible compared to the chunk.
+ */
+
+public class ParallelDcOS {
+
+    private double thresholdUp, thresholdDown, osSizeUp, osSizeDown;
+    private int initialMode;
+    private boolean relativeMoves;
+    private int numChunks;
+    private long numReplayedTicks; // how many ticks were processed twice during the last run
+
+    /**
+     * The parameters are the same as in the DcOS constructor.
+     * @param numChunks is the number of chunks which are processed in parallel, usually the number of cores
+     */
+    public ParallelDcOS(double thresholdUp, double thresholdDown, int initialMode, double osSizeUp, double osSizeDown, boolean relativeMoves, int numChunks){
+        this.thresholdUp = thresholdUp;
+        this.thresholdDown = thresholdDown;
+        this.initialMode = initialMode;
+        this.osSizeUp = osSizeUp;
+        this.osSizeDown = osSizeDown;
+        this.relativeMoves = relativeMoves;
+        this.numChunks = numChunks;
+    }
+
+    /**
+     * Finds all intrinsic events in the given ticks. The output format is the one of DcOS.runBatch: events[2 * k] is
+     * the index of the tick of the k-th event and events[2 * k + 1] is its type.
+     * @param bid is the column of bids
+     * @param ask is the column of asks
+     * @param time is the column of times
+     * @param from is the index of the first tick to process (inclusive)
+     * @param to is the index of the last tick to process (exclusive)
+     * @param events is the output buffer, it has to be able to keep 2 * (to - from) values
+     * @return number of intrinsic events written to the buffer
+     */
+    public int run(long[] bid, long[] ask, long[] time, int from, int to, int[] events){
+        if (events.length < 2 * (to - from)){
+            throw new IllegalArgumentException("The events buffer should be able to keep " + 2 * (to - from) + " values");
+        }
+        int chunks = Math.max(1, Math.min(numChunks, to - from));
+        int[] bounds = new int[chunks + 1];
+        for (int c = 0; c <= chunks; c++){
+            bounds[c] = from + (int) ((long) (to - from) * c / chunks);
+        }
+
+        // provisional pass, one chunk per thread
+        DcOS[] dcOSes = new DcOS[chunks];
+        int[][] chunkEvents = new int[chunks][];
+        int[] chunkNumEvents = new int[chunks];
+        ExecutorService executor = Executors.newFixedThreadPool(chunks);
+        try {
+            List<Future<Integer>> futures = new ArrayList<>();
+            for (int c = 0; c < chunks; c++){
+                final int chunk = c;
+                dcOSes[c] = new DcOS(thresholdUp, thresholdDown, initialMode, osSizeUp, osSizeDown, relativeMoves);
+                chunkEvents[c] = new int[2 * (bounds[c + 1] - bounds[c])];
+                futures.add(executor.submit(() -> dcOSes[chunk].runBatch(bid, ask, time, bounds[chunk], bounds[chunk + 1], chunkEvents[chunk])));
+            }
+            for (int c = 0; c < chunks; c++){
+                chunkNumEvents[c] = futures.get(c).get();
+            }
+        } catch (InterruptedException | ExecutionException ex){
+            throw new RuntimeException("Parallel DC detection failed", ex);
+        } finally {
+            executor.shutdown();
+        }
+
+        // stitching: the first chunk started from the real initial state, so its events are final
+        numReplayedTicks = 0;
+        int numOut = copyEvents(chunkEvents[0], 0, chunkNumEvents[0], events, 0);
+        DcOS realState = dcOSes[0];
+        for (int c = 1; c < chunks; c++){
+            DcOS replay = new DcOS(realState);
+            int[] provisional = chunkEvents[c];
+            int numProvisional = chunkNumEvents[c];
+            int k = 0; // the first provisional event which is not behind the replayed tick
+            boolean converged = false;
+            for (int i = bounds[c]; i < bounds[c + 1] && !converged; i++){
+                numReplayedTicks++;
+                int event = replay.run(bid[i], ask[i], time[i]);
+                if (event == 0){
+                    continue;
+                }
+                events[2 * numOut] = i;
+                events[2 * numOut + 1] = event;
+                numOut++;
+                while (k < numProvisional && provisional[2 * k] < i){
+                    k++;
+                }
+                if ((event == 1 || event == -1) && k < numProvisional && provisional[2 * k] == i && provisional[2 * k + 1] == event){
+                    converged = true;
+                    numOut = copyEvents(provisional, k + 1, numProvisional, events, numOut);
+                }
+            }
+            realState = converged ? dcOSes[c] : replay;
+        }
+        return numOut;
+    }
+
+    private static int copyEvents(int[] source, int fromEvent, int toEvent, int[] target, int numTarget){
+        int length = 2 * (toEvent - fromEvent);
+        System.arraycopy(source, 2 * fromEvent, target, 2 * numTarget, length);
+        return numTarget + toEvent - fromEvent;
+    }
+
+    /**
+     * @return number of ticks which were processed twice (by the provisional pass and by the replay) during the last
+     * run. Shows how fast the chunks converged.
+     */
+    public long getNumReplayedTicks() {
+        return numReplayedTicks;
+    }
+}
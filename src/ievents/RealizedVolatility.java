@@ -1,6 +1,11 @@
 package ievents;
 
 import market.Price;
+import tools.Checkpointable;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 
 /**
  * Created by author.
@@ -11,7 +16,7 @@ import market.Price;
  * traditional volatility estimators.
  */
 
-public class RealizedVolatility {
+public class RealizedVolatility implements Checkpointable {
 
     private double totalVolatility;
     private double normalizedVolatility;
@@ -27,14 +32,50 @@ public class RealizedVolatility {
     }
 
     public void run(Price aPrice){
-        int event = dcOS.run(aPrice);
+        run(aPrice.getBid(), aPrice.getAsk(), aPrice.getTime());
+    }
+
+    public void run(long bid, long ask, long time){
+        int event = dcOS.run(bid, ask, time);
         if (event == 1 || event == -1){
             sqrtOsDeviation += dcOS.computeSqrtOsDeviation();
         }
         if (timeFirstPrice == 0){
-            timeFirstPrice = aPrice.getTime();
+            timeFirstPrice = time;
         }
-        timeLastPrice = aPrice.getTime();
+        timeLastPrice = time;
+    }
+
+    /**
+     * Does the same as run for all ticks of a data set, but takes the intrinsic events from a store instead of running
+     * DcOS again. Should be called instead of run, not after it; afterwards DcOS is in its state after the last tick of
+     * the data set, so run can go on with newer ticks and writeState saves a consistent state.
+     * @param store is a store built with the same configuration of DcOS as the one of this instance
+     */
+    public void replay(IEventStore store){
+        store.checkMatches(dcOS);
+        store.replay((type, time, price, extreme, tExtreme, osL, prevDcTime) -> {
+            if (type == 1 || type == -1){
+                sqrtOsDeviation += store.computeSqrtOsDeviation(type, osL);
+            }
+        });
+        timeFirstPrice = store.getFirstTickTime();
+        timeLastPrice = store.getLastTickTime();
+        store.restoreFinalState(dcOS);
+    }
+
+    public void writeState(DataOutput out) throws IOException {
+        out.writeDouble(sqrtOsDeviation);
+        out.writeLong(timeFirstPrice);
+        out.writeLong(timeLastPrice);
+        dcOS.writeState(out);
+    }
+
+    public void readState(DataInput in) throws IOException {
+        sqrtOsDeviation = in.readDouble();
+        timeFirstPrice = in.readLong();
+        timeLastPrice = in.readLong();
+        dcOS.readState(in);
     }
 
     public double finish(){
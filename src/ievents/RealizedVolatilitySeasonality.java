@@ -1,10 +1,15 @@
 package ievents;
 
 import market.Price;
-import org.joda.time.DateTime;
-import org.joda.time.DateTimeConstants;
+import org.joda.time.DateTimeZone;
+import tools.Checkpoint;
+import tools.Checkpointable;
 import tools.Tools;
+import tools.WeekBinCalendar;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -23,7 +28,7 @@ import java.util.List;
  *  4) to normalize the final value in such a way that the mean activity is equal to 1.0
  *  5) profit
  */
-public class RealizedVolatilitySeasonality {
+public class RealizedVolatilitySeasonality implements Checkpointable {
 
     private static final long MLS_WEAK = 604800000L; // number of milliseconds in a week
     private static final long MLS_YEAR = 31536000000L; // number of milliseconds in a year
@@ -35,6 +40,8 @@ public class RealizedVolatilitySeasonality {
     private int previousBinId;
     private double sumSqrtOsDeviation;
     private boolean firstTick;
+    private long[] timestampsOfBins;
+    private WeekBinCalendar calendar; // gives the time from the beginning of the week and the real lengths of the bins
 
     /**
      *
@@ -46,57 +53,119 @@ public class RealizedVolatilitySeasonality {
         dCoS = new DcOS(threshold, threshold, 1, threshold, threshold, true);
         int nBinsInWeek = (int) (MLS_WEAK / timeOfBin);
         volatilityList = new double[nBinsInWeek];
+        timestampsOfBins = new long[nBinsInWeek];
+        for (int i = 0; i < nBinsInWeek; i++){
+            timestampsOfBins[i] = (i + 1) * timeOfBin;
+        }
+        calendar = new WeekBinCalendar(timestampsOfBins);
         sumSqrtOsDeviation = 0.0;
         firstTick = true;
     }
 
 
+    /**
+     * Sets the time zone in which the weeks begin (Monday 00:00) and the bins are counted, for example
+     * DateTimeZone.forID("America/New_York"). The default time zone is used otherwise.
+     */
+    public void setTimeZone(DateTimeZone zone){
+        calendar = new WeekBinCalendar(timestampsOfBins, zone);
+    }
+
     /**
      * This method should be called for every new price. It checks whether the algo finds a new DC IE at the given
      * price or not and saves variability of overshoots to a preliminary array of data.
      * @param aPrice is every new price.
      */
     public void run(Price aPrice){
+        run(aPrice.getBid(), aPrice.getAsk(), aPrice.getTime());
+    }
+
+    public void run(long bid, long ask, long time){
         if (firstTick){
-            dateFirstTick = aPrice.getTime();
+            dateFirstTick = time;
             firstTick = false;
         } else {
-            dateLastTick = aPrice.getTime();
+            dateLastTick = time;
         }
-        int iEvent = dCoS.run(aPrice);
+        int iEvent = dCoS.run(bid, ask, time);
         if (iEvent == 1 || iEvent == -1){
-            long dcTime = aPrice.getTime();
-            if (timeFirstDC == 0){
-                timeFirstDC = dcTime;
-                previousBinId = findBinId(dcTime);
-            }
-            int binId = findBinId(dcTime);
-            if (binId == previousBinId){
-                sumSqrtOsDeviation += dCoS.computeSqrtOsDeviation();
-            } else {
-                double volatOfBin = sumSqrtOsDeviation;
-                volatilityList[previousBinId] += volatOfBin;
-                previousBinId = binId;
-                sumSqrtOsDeviation = dCoS.computeSqrtOsDeviation();
+            registerDC(time, dCoS.computeSqrtOsDeviation());
+        }
+    }
+
+    /**
+     * Does the same as run for all ticks of a data set, but takes the intrinsic events from a store instead of running
+     * DcOS again. Should be called instead of run, not after it; afterwards DcOS is in its state after the last tick of
+     * the data set, so run can go on with newer ticks and writeState saves a consistent state.
+     * @param store is a store built with the same configuration of DcOS as the one of this instance
+     */
+    public void replay(IEventStore store){
+        store.checkMatches(dCoS);
+        store.replay((type, time, price, extreme, tExtreme, osL, prevDcTime) -> {
+            if (type == 1 || type == -1){
+                registerDC(time, store.computeSqrtOsDeviation(type, osL));
             }
+        });
+        if (store.getNumTicks() > 0){
+            dateFirstTick = store.getFirstTickTime();
+            firstTick = false;
+        }
+        if (store.getNumTicks() > 1){
+            dateLastTick = store.getLastTickTime();
+        }
+        store.restoreFinalState(dCoS);
+    }
+
+    private void registerDC(long dcTime, double sqrtOsDeviation){
+        if (timeFirstDC == 0){
+            timeFirstDC = dcTime;
+            previousBinId = findBinId(dcTime);
+        }
+        int binId = findBinId(dcTime);
+        if (binId == previousBinId){
+            sumSqrtOsDeviation += sqrtOsDeviation;
+        } else {
+            double volatOfBin = sumSqrtOsDeviation;
+            volatilityList[previousBinId] += volatOfBin;
+            previousBinId = binId;
+            sumSqrtOsDeviation = sqrtOsDeviation;
         }
     }
 
 
+    /**
+     * Saves the variability of overshoots collected in every bin, the not finished sum of the current bin and the state
+     * of the DcOS instance.
+     */
+    public void writeState(DataOutput out) throws IOException {
+        out.writeBoolean(firstTick);
+        out.writeLong(dateFirstTick);
+        out.writeLong(dateLastTick);
+        out.writeLong(timeFirstDC);
+        out.writeInt(previousBinId);
+        out.writeDouble(sumSqrtOsDeviation);
+        Checkpoint.writeDoubles(out, volatilityList);
+        dCoS.writeState(out);
+    }
+
+    public void readState(DataInput in) throws IOException {
+        firstTick = in.readBoolean();
+        dateFirstTick = in.readLong();
+        dateLastTick = in.readLong();
+        timeFirstDC = in.readLong();
+        previousBinId = in.readInt();
+        sumSqrtOsDeviation = in.readDouble();
+        Checkpoint.readDoubles(in, volatilityList);
+        dCoS.readState(in);
+    }
+
     /**
      * This method compute the index of a bin in which the DC IE occurs.
      * @param dcTime is the time of the observed DC IE.
      * @return index (Id) ot the correspondent bin.
      */
     private int findBinId(long dcTime){
-        DateTime dcDateTime = new DateTime(dcTime);
-        long mondayBeforeTime = dcDateTime.withDayOfWeek(DateTimeConstants.MONDAY).withTimeAtStartOfDay().getMillis();
-        long millsFromMonday = dcTime - mondayBeforeTime - 1;
-        if (millsFromMonday > MLS_WEAK){
-            System.out.println("ATTENTION! Winter time");
-            millsFromMonday -= 3600000;
-        }
-        return (int)(millsFromMonday / timeOfBin);
+        return (int)(calendar.millisFromMonday(dcTime) / timeOfBin);
     }
 
 
@@ -112,7 +181,8 @@ public class RealizedVolatilitySeasonality {
 
     /**
      * Computed volatility of each specific bin has to be annualized by multiplying the number by the sqrt of the number
-     * of bins in a year.
+     * of bins in a year. The real length of every bin averaged over the weeks of the sample is used, it differs from
+     * timeOfBin around DST transitions.
      */
     private void annualizeVolatility(){
         double numWeeksInWholeSample = (double) (dateLastTick - dateFirstTick) / MLS_WEAK;
@@ -120,9 +190,10 @@ public class RealizedVolatilitySeasonality {
             volatilityList[i] /= numWeeksInWholeSample; // find average overshoot variability per given bin // TODO: add median option
             volatilityList[i] = Math.sqrt(volatilityList[i]);
         }
-        double numYearsInBin = (double) timeOfBin / MLS_YEAR;
+        double[] binLengths = calendar.getAverageBinLengths(dateFirstTick, dateLastTick);
         for (int i = 0; i < volatilityList.length; i++){
-            volatilityList[i] /= Math.sqrt(numYearsInBin); // annualizing the volatility distribution
+            double numYearsInBin = binLengths[i] / MLS_YEAR;
+            volatilityList[i] = numYearsInBin > 0 ? volatilityList[i] / Math.sqrt(numYearsInBin) : 0; // annualizing the volatility distribution
         }
     }
 
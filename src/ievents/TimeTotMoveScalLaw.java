@@ -1,8 +1,13 @@
 package ievents;
 
 import market.Price;
+import tools.Checkpoint;
+import tools.Checkpointable;
 import tools.Tools;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.io.PrintWriter;
 import java.text.SimpleDateFormat;
 import java.util.Date;
@@ -23,10 +28,10 @@ import java.util.Date;
  *  choose whether to store results to a file or no.
  */
 
-public class TimeTotMoveScalLaw {
+public class TimeTotMoveScalLaw implements Checkpointable {
 
     private double[] arrayDeltas; // to hold all set of deltas used to compute the scaling law
-    private DcOS[] dcOses; // DC elements to get the values at given threshold
+    private DcOSBank dcOSBank; // DC elements to get the values at given thresholds
     private double[] timesTM; // keeps times of all TMs
     private double[] numDCs; // num of all DCs and, correspondingly, all TMs
     private int numSteps; // number of steps for the scaling law
@@ -40,11 +45,7 @@ public class TimeTotMoveScalLaw {
      */
     public TimeTotMoveScalLaw(float lowDelta, float higDelta, int numSteps){
         arrayDeltas = Tools.GenerateLogSpace(lowDelta, higDelta, numSteps);
-        dcOses = new DcOS[numSteps];
-        for (int i = 0; i < numSteps; i++){
-            double delta = arrayDeltas[i];
-            dcOses[i] = new DcOS(delta, delta, 1, delta, delta, true);
-        }
+        dcOSBank = new DcOSBank(arrayDeltas, 1, true);
         numDCs = new double[numSteps];
         timesTM = new double[numSteps];
         this.numSteps = numSteps;
@@ -55,15 +56,44 @@ public class TimeTotMoveScalLaw {
      * @param aPrice is the next observed (generated, recorded...) price
      */
     public void run(Price aPrice){
+        run(aPrice.getBid(), aPrice.getAsk(), aPrice.getTime());
+    }
+
+    /**
+     * The same as run(aPrice) for the raw values of a tick, nothing is allocated.
+     * @param bid is the bid of the next price
+     * @param ask is the ask of the next price
+     * @param time is the time of the next price in milliseconds
+     */
+    public void run(long bid, long ask, long time){
+        if (dcOSBank.run(bid, ask, time) == 0){
+            return;
+        }
+        int[] events = dcOSBank.getEvents();
         for (int i = 0; i < numSteps; i++){
-            int event = dcOses[i].run(aPrice);
+            int event = events[i];
             if (event == 1 || event == -1){
-                timesTM[i] += dcOses[i].gettOS() - dcOses[i].gettPrevOS();
+                timesTM[i] += dcOSBank.gettOS(i) - dcOSBank.gettPrevOS(i);
                 numDCs[i] += 1;
             }
         }
     }
 
+    /**
+     * Saves the accumulated times of total moves, the numbers of DCs and the state of all thresholds.
+     */
+    public void writeState(DataOutput out) throws IOException {
+        Checkpoint.writeDoubles(out, timesTM);
+        Checkpoint.writeDoubles(out, numDCs);
+        dcOSBank.writeState(out);
+    }
+
+    public void readState(DataInput in) throws IOException {
+        Checkpoint.readDoubles(in, timesTM);
+        Checkpoint.readDoubles(in, numDCs);
+        dcOSBank.readState(in);
+    }
+
     /**
      * Here the method simply finds average value of each overshoot set
      */
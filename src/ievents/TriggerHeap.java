@@ -0,0 +1,120 @@
+package ievents;
+
+/**
+ * Indexed binary heap of thresholds ordered by their trigger prices. Every threshold 0..n-1 is always in the heap and
+ * its key can be changed in O(log n). Used by DcOSTriggerBank to find the thresholds whose trigger prices were
+ * crossed by a tick without looking at the others.
+ *
+ * A max-heap keeps the largest key on the top and collects all items with key >= price; a min-heap keeps the smallest
+ * key on the top and collects all items with key <= price.
+ */
+
+class TriggerHeap {
+
+    private final boolean maxHeap;
+    private final double[] keys; // key of every item
+    private final int[] heap; // items in the heap order
+    private final int[] position; // position of every item in the heap
+    private final int[] stack; // used to traverse the heap without recursion
+
+    TriggerHeap(int size, boolean maxHeap){
+        this.maxHeap = maxHeap;
+        keys = new double[size];
+        heap = new int[size];
+        position = new int[size];
+        stack = new int[size];
+        for (int i = 0; i < size; i++){
+            heap[i] = i;
+            position[i] = i;
+        }
+    }
+
+    /**
+     * Sets keys of all items at once and restores the heap order in O(n).
+     */
+    void build(double[] newKeys){
+        System.arraycopy(newKeys, 0, keys, 0, keys.length);
+        for (int i = keys.length / 2 - 1; i >= 0; i--){
+            siftDown(i);
+        }
+    }
+
+    void update(int item, double key){
+        double oldKey = keys[item];
+        keys[item] = key;
+        if (before(key, oldKey)){
+            siftUp(position[item]);
+        } else {
+            siftDown(position[item]);
+        }
+    }
+
+    /**
+     * Finds all items whose key is crossed by the price: key >= price for a max-heap, key <= price for a min-heap.
+     * Only the crossed items and their direct children are looked at.
+     * @param price is the price to compare with
+     * @param out is the buffer for the found items, starting at the index count
+     * @param count is the number of items already in the buffer
+     * @return the new number of items in the buffer
+     */
+    int collect(double price, int[] out, int count){
+        if (heap.length == 0){
+            return count;
+        }
+        int top = 0;
+        stack[top++] = 0;
+        while (top > 0){
+            int pos = stack[--top];
+            int item = heap[pos];
+            if (maxHeap ? keys[item] >= price : keys[item] <= price){
+                out[count++] = item;
+                int child = 2 * pos + 1;
+                if (child < heap.length){
+                    stack[top++] = child;
+                }
+                if (child + 1 < heap.length){
+                    stack[top++] = child + 1;
+                }
+            }
+        }
+        return count;
+    }
+
+    private boolean before(double a, double b){
+        return maxHeap ? a > b : a < b;
+    }
+
+    private void siftUp(int pos){
+        int item = heap[pos];
+        while (pos > 0){
+            int parent = (pos - 1) / 2;
+            if (!before(keys[item], keys[heap[parent]])){
+                break;
+            }
+            heap[pos] = heap[parent];
+            position[heap[pos]] = pos;
+            pos = parent;
+        }
+        heap[pos] = item;
+        position[item] = pos;
+    }
+
+    private void siftDown(int pos){
+        int item = heap[pos];
+        int half = heap.length / 2;
+        while (pos < half){
+            int child = 2 * pos + 1;
+            if (child + 1 < heap.length && before(keys[heap[child + 1]], keys[heap[child]])){
+                child++;
+            }
+            if (!before(keys[heap[child]], keys[item])){
+                break;
+            }
+            heap[pos] = heap[child];
+            position[heap[pos]] = pos;
+            pos = child;
+        }
+        heap[pos] = item;
+        position[item] = pos;
+    }
+}
@@ -0,0 +1,193 @@
+package market;
+
+import java.util.ArrayList;
+
+/**
+ * Created by author.
+ * Compact in-memory container of ticks for the experiments which run over the same sample many times. A Price instance
+ * costs about 40 bytes plus the reference to it, here one tick costs 12 bytes:
+ *  - time is kept as the difference (in milliseconds) with the time of the previous tick, int;
+ *  - bid is kept as the difference with the first bid of the page, int;
+ *  - spread (ask - bid) is kept as int.
+ * Ticks are stored in pages of primitive arrays, each page has its absolute time and bid, so that the container can
+ * grow without copying the whole content.
+ *
+ * The ticks are read back by a Cursor which gives primitive values (or fills columns for DcOS.runBatch) and never
+ * creates Price objects.
+ */
+
+public class PackedTicks {
+
+    private static final int PAGE_BITS = 16;
+    private static final int PAGE_SIZE = 1 << PAGE_BITS; // ticks per page
+    private static final int PAGE_MASK = PAGE_SIZE - 1;
+
+    private int nDecimals;
+    private ArrayList<Page> pages = new ArrayList<>();
+    private long size;
+    private long lastTime;
+
+    private static class Page {
+        final long firstTime;
+        final long baseBid;
+        final int[] timeDeltas = new int[PAGE_SIZE];
+        final int[] bids = new int[PAGE_SIZE];
+        final int[] spreads = new int[PAGE_SIZE];
+
+        Page(long firstTime, long baseBid){
+            this.firstTime = firstTime;
+            this.baseBid = baseBid;
+        }
+    }
+
+    /**
+     * @param nDecimals is how many decimals the original prices have (see Price)
+     */
+    public PackedTicks(int nDecimals){
+        this.nDecimals = nDecimals;
+    }
+
+    public void add(Price aPrice){
+        add(aPrice.getBid(), aPrice.getAsk(), aPrice.getTime());
+    }
+
+    /**
+     * Appends a tick. Ticks are supposed to come in the order of time, a gap between two ticks must not exceed
+     * Integer.MAX_VALUE milliseconds (about 24 days), the same for the spread and for the distance of a bid from the
+     * first bid of its page.
+     * @throws IllegalArgumentException if a value cannot be packed, the tick is not added then
+     */
+    public void add(long bid, long ask, long time){
+        int index = (int) (size & PAGE_MASK);
+        boolean newPage = index == 0;
+        Page page = newPage ? null : pages.get(pages.size() - 1);
+        // all values are checked before anything is changed, so a rejected tick leaves the container as it was
+        int timeDelta = newPage ? 0 : toInt(time - lastTime, "time gap");
+        int bidMove = newPage ? 0 : toInt(bid - page.baseBid, "bid move");
+        int spread = toInt(ask - bid, "spread");
+        if (newPage){
+            page = new Page(time, bid);
+            pages.add(page);
+        }
+        page.timeDeltas[index] = timeDelta;
+        page.bids[index] = bidMove;
+        page.spreads[index] = spread;
+        lastTime = time;
+        size++;
+    }
+
+    private static int toInt(long value, String what){
+        if (value > Integer.MAX_VALUE || value < Integer.MIN_VALUE){
+            throw new IllegalArgumentException("The " + what + " " + value + " cannot be packed into int");
+        }
+        return (int) value;
+    }
+
+    public long size() {
+        return size;
+    }
+
+    public int getnDecimals() {
+        return nDecimals;
+    }
+
+    /**
+     * @return approximate number of bytes used by the stored ticks
+     */
+    public long getMemoryUsage(){
+        return (long) pages.size() * (3L * 4 * PAGE_SIZE + 16);
+    }
+
+    /**
+     * @return a cursor positioned before the first tick
+     */
+    public Cursor cursor(){
+        return new Cursor(0);
+    }
+
+    /**
+     * @param fromIndex is the index of the first tick the cursor should return
+     * @return a cursor positioned before the given tick
+     */
+    public Cursor cursor(long fromIndex){
+        return new Cursor(fromIndex);
+    }
+
+    /**
+     * Sequential reader of the ticks. Several cursors can read the same container at the same time, as long as no
+     * tick is being added.
+     */
+    public class Cursor {
+
+        private long nextIndex;
+        private Page page;
+        private long bid, ask, time;
+
+        private Cursor(long fromIndex){
+            nextIndex = fromIndex;
+            if (fromIndex > 0 && fromIndex <= size){ // restore the time of the previous tick within its page
+                long previous = fromIndex - 1;
+                page = pages.get((int) (previous >>> PAGE_BITS));
+                time = page.firstTime;
+                for (int i = 1; i <= (int) (previous & PAGE_MASK); i++){
+                    time += page.timeDeltas[i];
+                }
+            }
+        }
+
+        /**
+         * Moves to the next tick.
+         * @return false if there are no ticks anymore
+         */
+        public boolean next(){
+            if (nextIndex >= size){
+                return false;
+            }
+            int index = (int) (nextIndex & PAGE_MASK);
+            if (index == 0){
+                page = pages.get((int) (nextIndex >>> PAGE_BITS));
+                time = page.firstTime;
+            } else {
+                time += page.timeDeltas[index];
+            }
+            bid = page.baseBid + page.bids[index];
+            ask = bid + page.spreads[index];
+            nextIndex++;
+            return true;
+        }
+
+        /**
+         * Fills columns with the next ticks, for example for DcOS.runBatch.
+         * @return number of ticks written, 0 if there are no ticks anymore
+         */
+        public int fill(long[] bids, long[] asks, long[] times, int maxTicks){
+            int n = 0;
+            while (n < maxTicks && next()){
+                bids[n] = bid;
+                asks[n] = ask;
+                times[n] = time;
+                n++;
+            }
+            return n;
+        }
+
+        public long getBid() {
+            return bid;
+        }
+
+        public long getAsk() {
+            return ask;
+        }
+
+        public long getTime() {
+            return time;
+        }
+
+        /**
+         * @return index of the current tick
+         */
+        public long getIndex() {
+            return nextIndex - 1;
+        }
+    }
+}
@@ -23,6 +23,16 @@ public class Price {
         this.nDecimals = nDecimals;
     }
 
+    /**
+     * Sets all values at once, so that one instance can be reused for many ticks.
+     */
+    public void set(long bid, long ask, long time, int nDecimals){
+        this.bid = bid;
+        this.ask = ask;
+        this.time = time;
+        this.nDecimals = nDecimals;
+    }
+
     public long getAsk() {
         return ask;
     }
@@ -0,0 +1,82 @@
+package market;
+
+import java.util.Arrays;
+
+/**
+ * Created by author.
+ * A block of consecutive ticks kept in columns of primitives: times, bids and asks. Blocks are produced by readers
+ * (see tools.MappedTickReader) and can be given directly to the batch methods of the analyses, for example
+ * DcOS.runBatch(block.getBids(), block.getAsks(), block.getTimes(), 0, block.size(), events).
+ *
+ * The columns can be longer than the number of ticks, only the first size() values are valid.
+ */
+public class TickBlock implements TickHandler {
+
+    private long[] times, bids, asks;
+    private int size;
+    private long firstIndex; // index of the first tick of the block in the whole sample
+
+    public TickBlock(int capacity){
+        times = new long[Math.max(1, capacity)];
+        bids = new long[times.length];
+        asks = new long[times.length];
+    }
+
+    /**
+     * Appends a tick, the columns grow if needed.
+     */
+    public void add(long bid, long ask, long time){
+        if (size == times.length){
+            int capacity = times.length * 2;
+            times = Arrays.copyOf(times, capacity);
+            bids = Arrays.copyOf(bids, capacity);
+            asks = Arrays.copyOf(asks, capacity);
+        }
+        times[size] = time;
+        bids[size] = bid;
+        asks[size] = ask;
+        size++;
+    }
+
+    @Override
+    public void onTick(long bid, long ask, long time){
+        add(bid, ask, time);
+    }
+
+    /**
+     * Passes all ticks of the block to the handler in their order.
+     */
+    public void forEach(TickHandler handler){
+        for (int i = 0; i < size; i++){
+            handler.onTick(bids[i], asks[i], times[i]);
+        }
+    }
+
+    public void clear(){
+        size = 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public long[] getTimes() {
+        return times;
+    }
+
+    public long[] getBids() {
+        return bids;
+    }
+
+    public long[] getAsks() {
+        return asks;
+    }
+
+    public long getFirstIndex() {
+        return firstIndex;
+    }
+
+    public void setFirstIndex(long firstIndex) {
+        this.firstIndex = firstIndex;
+    }
+}
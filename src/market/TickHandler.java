@@ -0,0 +1,15 @@
+package market;
+
+/**
+ * Receives ticks as primitive values, so that readers and parsers can pass ticks to analyses without creating Price
+ * objects.
+ */
+public interface TickHandler {
+
+    /**
+     * @param bid is the bid of a new price
+     * @param ask is the ask of a new price
+     * @param time is the time of a new price in milliseconds
+     */
+    void onTick(long bid, long ask, long time);
+}
@@ -0,0 +1,184 @@
+package market;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Created by author.
+ * Preallocated single-producer / single-consumer ring of ticks kept in primitive columns, used to pass ticks from a
+ * parser thread to an analysis thread without creating objects or taking locks. Only one thread may put ticks and only
+ * one (other) thread may take them.
+ *
+ * The producer and the consumer publish their positions through ordered writes (lazySet) and keep a cached copy of the
+ * position of the other side, so the shared counters are read only when the ring looks full or empty. When it is, the
+ * waiting side uses the chosen WaitStrategy. The ring counts the waits of both sides: the side which waits less is
+ * the bottleneck.
+ *
+ * The ring is a TickHandler, so a TickParser can write into it directly.
+ */
+public class TickRing implements TickHandler {
+
+    public enum WaitStrategy {
+        BUSY_SPIN, // lowest latency, burns a core
+        YIELD,     // gives the core to other threads between the checks
+        PARK       // sleeps for PARK_NANOS between the checks, for machines with fewer cores than threads
+    }
+
+    private static final long PARK_NANOS = 20000L;
+
+    private final long[] bids, asks, times;
+    private final int mask;
+    private final WaitStrategy waitStrategy;
+    private final AtomicLong tail = new AtomicLong(); // number of ticks put
+    private final AtomicLong head = new AtomicLong(); // number of ticks taken
+    private long cachedHead; // producer's copy of head
+    private long cachedTail; // consumer's copy of tail
+    private volatile boolean closed;
+    private long producerWaits, consumerWaits; // number of times a side found the ring full / empty
+    private long producerWaitNanos, consumerWaitNanos;
+
+    /**
+     * @param capacity is the number of slots, rounded up to a power of two, at most 2^30
+     * @param waitStrategy is how a side waits when the ring is full or empty
+     */
+    public TickRing(int capacity, WaitStrategy waitStrategy){
+        if (capacity > 1 << 30){
+            throw new IllegalArgumentException("The capacity of the ring should not be larger than 2^30: " + capacity);
+        }
+        int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        bids = new long[size];
+        asks = new long[size];
+        times = new long[size];
+        mask = size - 1;
+        this.waitStrategy = waitStrategy;
+    }
+
+    /**
+     * Puts a tick, waits while the ring is full. Producer side.
+     * @throws IllegalStateException if the ring was closed (for example because the consumer failed)
+     */
+    @Override
+    public void onTick(long bid, long ask, long time){
+        long next = tail.get();
+        if (next - cachedHead > mask){
+            cachedHead = head.get();
+            if (next - cachedHead > mask){
+                producerWaits++;
+                long start = System.nanoTime();
+                for (int attempt = 0; next - cachedHead > mask; attempt++){
+                    if (closed){
+                        throw new IllegalStateException("The ring is closed");
+                    }
+                    idle(attempt);
+                    cachedHead = head.get();
+                }
+                producerWaitNanos += System.nanoTime() - start;
+            }
+        }
+        int slot = (int) next & mask;
+        bids[slot] = bid;
+        asks[slot] = ask;
+        times[slot] = time;
+        tail.lazySet(next + 1);
+    }
+
+    /**
+     * Gives all ticks which are available now (at most maxTicks) to the handler. Consumer side, does not wait.
+     * @return number of ticks given, 0 if the ring is empty, -1 if it is empty and closed
+     */
+    public int drain(TickHandler handler, int maxTicks){
+        long first = head.get();
+        if (cachedTail == first){
+            cachedTail = tail.get();
+            if (cachedTail == first){
+                return closed && tail.get() == first ? -1 : 0;
+            }
+        }
+        long last = Math.min(cachedTail, first + maxTicks);
+        for (long i = first; i < last; i++){
+            int slot = (int) i & mask;
+            handler.onTick(bids[slot], asks[slot], times[slot]);
+        }
+        head.lazySet(last);
+        return (int) (last - first);
+    }
+
+    /**
+     * Gives all ticks to the handler until the ring is closed by the producer and empty. Consumer side.
+     * @return number of ticks given
+     */
+    public long consume(TickHandler handler){
+        long numTicks = 0;
+        int attempt = 0;
+        long waitStart = 0;
+        while (true){
+            int n = drain(handler, mask + 1);
+            if (n > 0){
+                numTicks += n;
+                if (attempt > 0){
+                    consumerWaitNanos += System.nanoTime() - waitStart;
+                    attempt = 0;
+                }
+            } else if (n < 0){
+                if (attempt > 0){
+                    consumerWaitNanos += System.nanoTime() - waitStart;
+                }
+                return numTicks;
+            } else {
+                if (attempt == 0){
+                    consumerWaits++;
+                    waitStart = System.nanoTime();
+                }
+                idle(attempt++);
+            }
+        }
+    }
+
+    private void idle(int attempt){
+        switch (waitStrategy){
+            case BUSY_SPIN:
+                break;
+            case YIELD:
+                Thread.yield();
+                break;
+            case PARK:
+                if (attempt < 100){ // a short spin first, the other side is usually about to move
+                    Thread.yield();
+                } else {
+                    LockSupport.parkNanos(PARK_NANOS);
+                }
+                break;
+        }
+    }
+
+    /**
+     * Tells the consumer that no ticks will come anymore, or the producer that nobody will take them.
+     */
+    public void close(){
+        closed = true;
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    public int getCapacity() {
+        return mask + 1;
+    }
+
+    public long getProducerWaits() {
+        return producerWaits;
+    }
+
+    public long getConsumerWaits() {
+        return consumerWaits;
+    }
+
+    public long getProducerWaitNanos() {
+        return producerWaitNanos;
+    }
+
+    public long getConsumerWaitNanos() {
+        return consumerWaitNanos;
+    }
+}
@@ -0,0 +1,326 @@
+package tools;
+
+import org.joda.time.DateTimeZone;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Created by author.
+ * Theta time which follows the market online. Instead of a seasonality array computed once from the whole data set
+ * (see ThetaTime), the weekly activity is the number of events (for example DC IEs) observed in every activity bin of
+ * the week with an exponential decay, so the profile forgets old weeks with the given half-life. The theta
+ * timestamps are recomputed from the profile every publishEvery events (or by publish()) and published as a new array;
+ * readers on other threads get the whole old or the whole new array, never a mix of them.
+ *
+ * The decay is applied by a global factor: an event at time t adds exp(ln2 * (t - t0) / halfLife) instead of 1 and
+ * all the weights are rescaled only when the factor becomes too large, so an event costs one update of a Fenwick tree
+ * of the weights, O(log numActivityBins). Every theta boundary remembers the activity bin it fell in and the activity
+ * before that bin. publish() updates these sums by the weight added since the previous publication to the bins below
+ * (a merge with the sorted list of the changed bins) and interpolates inside the same bin; only a boundary whose share
+ * left its bin is moved, bin by bin over the range it crossed, or by a search in the tree if it went further than
+ * MAX_WALK bins. A publication is O(numThetaBins + k log k + c log numActivityBins) for k changed bins and c boundaries
+ * which crossed a bin, instead of a pass over all the activity bins.
+ *
+ * addEvent and publish should be called by one thread, getTimestampsOfBins by any thread. The state can be saved to a
+ * Checkpoint; the time zone and the other settings are not saved and should be the same when it is restored.
+ */
+public class AdaptiveThetaTime implements Checkpointable {
+
+    private static final long MLS_WEEK = 604800000L; // number of milliseconds in a week
+    private static final double MAX_EXPONENT = 300; // the weights are rescaled when the factor reaches e^300
+    private static final int MAX_WALK = 32; // bins a crossed boundary is moved one by one before the tree is searched
+
+    private final int numActivityBins, numThetaBins;
+    private final long lenOfActivityBin;
+    private final double decayRate; // ln2 / halfLife, 0 without decay
+    private final WeekBinCalendar calendar; // finds the activity bin of an event
+    private final double[] weights; // activity of every bin multiplied by the global factor
+    private final double[] tree; // Fenwick tree of the weights, tree[i] holds a sum of weights ending at bin i - 1
+    private final int highestPowerOfTwo; // the largest power of two not above numActivityBins
+    private final int[] positions; // the activity bin of every theta boundary at the latest publication
+    private final double[] befores; // the activity of the bins before positions[j] at the latest publication
+    private final double[] added; // weight added to every bin since the latest publication
+    private final int[] changedBins; // the bins with added weight, numChanged of them
+    private final int publishEvery;
+    private int numChanged;
+    private boolean positionsValid; // false until the first publication and after readState
+    private int numCrossed; // boundaries moved to another bin by the latest publication
+    private double foundBefore; // the activity before the bin found by moveTo or findPosition
+    private double totalWeight;
+    private long referenceTime; // the global factor is exp(decayRate * (time - referenceTime))
+    private boolean hasReference;
+    private int numUnpublished; // events since the latest publication
+    private volatile long[] timestampsOfBins; // the published theta timestamps, never changed after publication
+    private volatile int version; // number of publications
+
+    /**
+     * @param initialSeasonality is the activity profile to start from (equal bins of a week beginning on Monday 00:00),
+     *                           for example one of the Seasonality*.csv arrays. Its length is the number of activity bins
+     * @param priorWeight is how many events the initial profile is worth, it decays like the events
+     * @param numThetaBins is the number of theta bins of a week
+     * @param halfLife is the time (in milliseconds) after which an event counts half, Long.MAX_VALUE for no decay
+     * @param publishEvery is after how many events the timestamps are recomputed, 0 to call publish() only by hand
+     * @param zone is the time zone of the weeks
+     */
+    public AdaptiveThetaTime(double[] initialSeasonality, double priorWeight, int numThetaBins, long halfLife,
+                             int publishEvery, DateTimeZone zone){
+        numActivityBins = initialSeasonality.length;
+        this.numThetaBins = numThetaBins;
+        this.publishEvery = publishEvery;
+        lenOfActivityBin = MLS_WEEK / numActivityBins;
+        decayRate = halfLife == Long.MAX_VALUE ? 0 : Math.log(2) / halfLife;
+        long[] stampsActivityBins = new long[numActivityBins];
+        for (int i = 0; i < numActivityBins; i++){
+            stampsActivityBins[i] = (i + 1) * lenOfActivityBin;
+        }
+        calendar = new WeekBinCalendar(stampsActivityBins, zone);
+        weights = new double[numActivityBins];
+        tree = new double[numActivityBins + 1];
+        int power = 1;
+        while (power * 2 <= numActivityBins){
+            power *= 2;
+        }
+        highestPowerOfTwo = power;
+        positions = new int[numThetaBins - 1];
+        befores = new double[numThetaBins - 1];
+        added = new double[numActivityBins];
+        changedBins = new int[numActivityBins];
+        double sumSeasonality = 0;
+        for (double activity : initialSeasonality){
+            if (activity < 0 || Double.isNaN(activity)){
+                throw new IllegalArgumentException("The activity should be non-negative: " + activity);
+            }
+            sumSeasonality += activity;
+        }
+        if (!(sumSeasonality > 0) || !(priorWeight > 0)){
+            throw new IllegalArgumentException("The initial activity and its weight should be positive");
+        }
+        for (int i = 0; i < numActivityBins; i++){
+            weights[i] = initialSeasonality[i] / sumSeasonality * priorWeight;
+            totalWeight += weights[i];
+        }
+        buildTree();
+        publish();
+    }
+
+    /**
+     * Fills the Fenwick tree from the weights in O(numActivityBins).
+     */
+    private void buildTree(){
+        tree[0] = 0;
+        System.arraycopy(weights, 0, tree, 1, numActivityBins);
+        for (int i = 1; i <= numActivityBins; i++){
+            int parent = i + (i & -i);
+            if (parent <= numActivityBins){
+                tree[parent] += tree[i];
+            }
+        }
+    }
+
+    /**
+     * Registers an event (a DC IE, for example) at the given time and publishes new timestamps if publishEvery events
+     * have been collected.
+     */
+    public void addEvent(long time){
+        if (!hasReference){
+            referenceTime = time;
+            hasReference = true;
+        }
+        double exponent = decayRate * (time - referenceTime);
+        if (exponent > MAX_EXPONENT){ // rescale everything to the new reference time
+            double scale = Math.exp(-exponent);
+            for (int i = 0; i < numActivityBins; i++){
+                weights[i] *= scale;
+                tree[i + 1] *= scale;
+                added[i] *= scale;
+            }
+            for (int j = 0; j < befores.length; j++){
+                befores[j] *= scale;
+            }
+            totalWeight *= scale;
+            referenceTime = time;
+            exponent = 0;
+        }
+        int bin = Math.min(calendar.findBinId(time), numActivityBins - 1);
+        double weight = Math.exp(exponent);
+        if (added[bin] == 0 && weight > 0){
+            changedBins[numChanged++] = bin;
+        }
+        added[bin] += weight;
+        weights[bin] += weight;
+        totalWeight += weight;
+        for (int i = bin + 1; i <= numActivityBins; i += i & -i){
+            tree[i] += weight;
+        }
+        numUnpublished++;
+        if (publishEvery > 0 && numUnpublished >= publishEvery){
+            publish();
+        }
+    }
+
+    /**
+     * Recomputes the theta timestamps from the current activity profile and publishes them. Every timestamp is the time
+     * from Monday at which the cumulative activity reaches its share of the total, with the interpolation inside the
+     * activity bin where it happens (as in ThetaTime). A boundary whose share stays in the same activity bin is only
+     * interpolated again, the others are moved to the bin where their share is now.
+     * @return the new timestamps
+     */
+    public long[] publish(){
+        long[] stamps = new long[numThetaBins];
+        double activityPerThetaBin = totalWeight / numThetaBins;
+        Arrays.sort(changedBins, 0, numChanged);
+        int changed = 0; // the changed bins below the current position
+        double addedBefore = 0; // the weight added to them
+        numCrossed = 0;
+        for (int j = 0; j < numThetaBins - 1; j++){
+            double activity = (j + 1) * activityPerThetaBin;
+            int position = positions[j];
+            double before = 0;
+            if (positionsValid){ // the positions of the latest publication never decrease with j
+                while (changed < numChanged && changedBins[changed] < position){
+                    addedBefore += added[changedBins[changed++]];
+                }
+                before = befores[j] + addedBefore;
+            }
+            if (!positionsValid || !(before < activity && activity <= before + weights[position])){ // the share crossed a bin
+                position = positionsValid ? moveTo(activity, position, before) : findPosition(activity);
+                before = foundBefore;
+                numCrossed++;
+                if (position == numActivityBins){ // rounding errors at the very end
+                    positions[j] = numActivityBins - 1;
+                    befores[j] = before - weights[numActivityBins - 1];
+                    stamps[j] = MLS_WEEK;
+                    continue;
+                }
+            }
+            positions[j] = position;
+            befores[j] = before;
+            double inBin = weights[position] > 0 ? (activity - before) / weights[position] : 0;
+            stamps[j] = (long) (position * lenOfActivityBin + lenOfActivityBin * Math.min(1, Math.max(0, inBin)));
+        }
+        stamps[numThetaBins - 1] = MLS_WEEK;
+        for (int i = 0; i < numChanged; i++){
+            added[changedBins[i]] = 0;
+        }
+        numChanged = 0;
+        positionsValid = true;
+        numUnpublished = 0;
+        timestampsOfBins = stamps;
+        version++;
+        return stamps;
+    }
+
+    /**
+     * Moves a boundary from its bin of the latest publication to the bin at which the cumulative activity reaches the
+     * given value, one bin at a time, and leaves the activity of the bins before it in foundBefore. If it is more than
+     * MAX_WALK bins away, the bin is found in the tree.
+     * @return the index of the bin, numActivityBins if the value is above the total by rounding errors
+     */
+    private int moveTo(double activity, int position, double before){
+        for (int step = 0; step < MAX_WALK; step++){
+            if (before >= activity && position > 0){
+                position--;
+                before -= weights[position];
+            } else if (before + weights[position] < activity && position < numActivityBins - 1){
+                before += weights[position];
+                position++;
+            } else if (before < activity && activity <= before + weights[position]){
+                foundBefore = before;
+                return position;
+            } else {
+                break; // at the first or the last bin
+            }
+        }
+        return findPosition(activity);
+    }
+
+    /**
+     * Descends the Fenwick tree to the first bin at which the cumulative activity reaches the given value and leaves the
+     * activity of the bins before it in foundBefore.
+     * @return the index of the bin, numActivityBins if the value is above the total by rounding errors
+     */
+    private int findPosition(double activity){
+        int position = 0; // the number of whole bins with the cumulative activity below the value
+        double before = 0;
+        for (int step = highestPowerOfTwo; step > 0; step >>= 1){
+            int next = position + step;
+            if (next <= numActivityBins && before + tree[next] < activity){
+                position = next;
+                before += tree[next];
+            }
+        }
+        foundBefore = before;
+        return position;
+    }
+
+    /**
+     * @return the latest published theta timestamps (the end of every theta bin in milliseconds from Monday). The array
+     * is never changed, a new publication replaces it by a new one
+     */
+    public long[] getTimestampsOfBins() {
+        return timestampsOfBins;
+    }
+
+    /**
+     * @return the current activity profile normalized to the sum 1
+     */
+    public double[] getActivityProfile(){
+        double[] profile = new double[numActivityBins];
+        for (int i = 0; i < numActivityBins; i++){
+            profile[i] = weights[i] / totalWeight;
+        }
+        return profile;
+    }
+
+    /**
+     * Saves the activity profile, the reference time of the decay and the published timestamps with their version.
+     */
+    public void writeState(DataOutput out) throws IOException {
+        Checkpoint.writeDoubles(out, weights);
+        out.writeDouble(totalWeight);
+        out.writeBoolean(hasReference);
+        out.writeLong(referenceTime);
+        out.writeInt(numUnpublished);
+        out.writeInt(version);
+        Checkpoint.writeLongs(out, timestampsOfBins);
+    }
+
+    public void readState(DataInput in) throws IOException {
+        Checkpoint.readDoubles(in, weights);
+        buildTree();
+        Arrays.fill(added, 0);
+        numChanged = 0;
+        positionsValid = false; // the next publication searches every boundary in the new tree
+        totalWeight = in.readDouble();
+        hasReference = in.readBoolean();
+        referenceTime = in.readLong();
+        numUnpublished = in.readInt();
+        int savedVersion = in.readInt();
+        long[] stamps = new long[numThetaBins];
+        Checkpoint.readLongs(in, stamps);
+        timestampsOfBins = stamps;
+        version = savedVersion;
+    }
+
+    public int getVersion() {
+        return version;
+    }
+
+    /**
+     * @return number of theta boundaries which left their activity bin at the latest publication and were searched again
+     */
+    public int getNumCrossed() {
+        return numCrossed;
+    }
+
+    public int getNumThetaBins() {
+        return numThetaBins;
+    }
+
+    public DateTimeZone getZone() {
+        return calendar.getZone();
+    }
+}
@@ -0,0 +1,165 @@
+package tools;
+
+import java.io.*;
+
+/**
+ * A binary snapshot of the state of several Checkpointable objects (DcOS instances, analyses...) taken at a certain
+ * point of a tick stream. Besides the state, the snapshot keeps the number of ticks processed so far and the offset in
+ * the input file where the next tick begins, so that a driver can resume the run from that point.
+ *
+ * Taking a snapshot only serializes the state to memory, which takes microseconds. Writing it to disk is a separate
+ * step (save) which can be done by another thread while the main loop goes on.
+ *
+ * Typical usage:
+ *  Checkpoint.take(numTicks, offset, dcOS, analysis).save("run.ckp");            // every N million ticks
+ *  Checkpoint checkpoint = Checkpoint.load("run.ckp");                            // after a failure
+ *  checkpoint.restore(dcOS, analysis); skip checkpoint.getFileOffset() bytes of the input and go on.
+ *
+ * CheckpointDriver does all of this for a tick file, the offsets come from TickParser.getLineEnd().
+ */
+public class Checkpoint {
+
+    private static final int MAGIC = 0x44434350; // "DCCP"
+    private static final int VERSION = 1;
+    private long numTicks; // number of ticks processed before the snapshot
+    private long fileOffset; // offset in the input file of the first not processed tick
+    private byte[] state; // serialized state of all the parts
+
+    private Checkpoint(long numTicks, long fileOffset, byte[] state){
+        this.numTicks = numTicks;
+        this.fileOffset = fileOffset;
+        this.state = state;
+    }
+
+    /**
+     * Serializes the state of all given parts to memory.
+     * @param numTicks is number of ticks processed so far
+     * @param fileOffset is the offset in the input file where the next tick begins
+     * @param parts are the objects to save, the same objects (in the same order) must be given to restore
+     * @return the snapshot
+     */
+    public static Checkpoint take(long numTicks, long fileOffset, Checkpointable... parts){
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(4096);
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(parts.length);
+            for (Checkpointable part : parts){
+                part.writeState(out);
+            }
+            out.flush();
+            return new Checkpoint(numTicks, fileOffset, bytes.toByteArray());
+        } catch (IOException ex){
+            throw new UncheckedIOException(ex); // cannot happen for a stream in memory
+        }
+    }
+
+    /**
+     * Restores the state of the given parts from the snapshot.
+     * @param parts are the same objects (of the same configuration and in the same order) as given to take
+     */
+    public void restore(Checkpointable... parts) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(state));
+        int numParts = in.readInt();
+        if (numParts != parts.length){
+            throw new IOException("The checkpoint has " + numParts + " parts, " + parts.length + " given");
+        }
+        for (Checkpointable part : parts){
+            part.readState(in);
+        }
+    }
+
+    /**
+     * Writes the snapshot to a file. The data is first written to a temporary file which then atomically replaces the
+     * previous checkpoint, so that a failure at any moment leaves either the old or the new checkpoint.
+     * @param fileName is the name of the checkpoint file
+     */
+    public void save(String fileName) throws IOException {
+        File file = new File(fileName);
+        File tmpFile = new File(fileName + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)))){
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(numTicks);
+            out.writeLong(fileOffset);
+            out.writeInt(state.length);
+            out.write(state);
+        }
+        Tools.replaceFile(tmpFile, file);
+    }
+
+    public static Checkpoint load(String fileName) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(fileName)))){
+            if (in.readInt() != MAGIC){
+                throw new IOException(fileName + " is not a checkpoint file");
+            }
+            int version = in.readInt();
+            if (version != VERSION){
+                throw new IOException("Unsupported version of the checkpoint: " + version);
+            }
+            long numTicks = in.readLong();
+            long fileOffset = in.readLong();
+            byte[] state = new byte[in.readInt()];
+            in.readFully(state);
+            return new Checkpoint(numTicks, fileOffset, state);
+        }
+    }
+
+    public long getNumTicks() {
+        return numTicks;
+    }
+
+    public long getFileOffset() {
+        return fileOffset;
+    }
+
+    public static void writeLongs(DataOutput out, long[] values) throws IOException {
+        out.writeInt(values.length);
+        for (long value : values){
+            out.writeLong(value);
+        }
+    }
+
+    public static void writeDoubles(DataOutput out, double[] values) throws IOException {
+        out.writeInt(values.length);
+        for (double value : values){
+            out.writeDouble(value);
+        }
+    }
+
+    public static void writeInts(DataOutput out, int[] values) throws IOException {
+        out.writeInt(values.length);
+        for (int value : values){
+            out.writeInt(value);
+        }
+    }
+
+    /**
+     * Reads an array written by writeLongs into an existing array of the same length.
+     */
+    public static void readLongs(DataInput in, long[] values) throws IOException {
+        checkLength(in.readInt(), values.length);
+        for (int i = 0; i < values.length; i++){
+            values[i] = in.readLong();
+        }
+    }
+
+    public static void readDoubles(DataInput in, double[] values) throws IOException {
+        checkLength(in.readInt(), values.length);
+        for (int i = 0; i < values.length; i++){
+            values[i] = in.readDouble();
+        }
+    }
+
+    public static void readInts(DataInput in, int[] values) throws IOException {
+        checkLength(in.readInt(), values.length);
+        for (int i = 0; i < values.length; i++){
+            values[i] = in.readInt();
+        }
+    }
+
+    private static void checkLength(int savedLength, int length) throws IOException {
+        if (savedLength != length){
+            throw new IOException("The checkpoint has an array of " + savedLength + " elements, " + length + " expected");
+        }
+    }
+}
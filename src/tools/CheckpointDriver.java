@@ -0,0 +1,112 @@
+package tools;
+
+import market.TickHandler;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+
+/**
+ * Created by author.
+ * Driver of a long run over a tick file which can be killed and resumed. Every checkpointEvery ticks it takes a
+ * Checkpoint of the given analyses (and of the filter of the parser) together with the number of ticks processed and
+ * the offset of the next line of the file, and saves it. When it is started again with the same checkpoint file, it
+ * restores the analyses, skips the processed part of the file and goes on, so the analyses end in the same state as
+ * after an uninterrupted run. The checkpoint file is deleted when the whole file has been processed.
+ *
+ *  InstantaneousVolatilitySeasonality seasonality = new InstantaneousVolatilitySeasonality(threshold, 600000L);
+ *  CheckpointDriver driver = new CheckpointDriver(parser, "run.ckp", 10000000L);
+ *  driver.run(fileName, seasonality::run, seasonality);
+ *
+ * The analyses should be new instances of the same configuration as the ones of the killed run. A gzipped file is
+ * resumed by decompressing and skipping its beginning, a plain file by a seek.
+ */
+public class CheckpointDriver {
+
+    private final TickParser parser; // settings of the parser of every run
+    private final String checkpointFileName;
+    private final long checkpointEvery; // number of ticks between two checkpoints
+    private boolean resumed; // whether the last run started from a checkpoint
+
+    /**
+     * @param parser gives the format of the lines, every run uses its own copy
+     * @param checkpointFileName is the file of the checkpoints
+     * @param checkpointEvery is the number of ticks between two checkpoints, for example 10 million
+     */
+    public CheckpointDriver(TickParser parser, String checkpointFileName, long checkpointEvery){
+        if (checkpointEvery < 1){
+            throw new IllegalArgumentException("The number of ticks between checkpoints should be positive: " + checkpointEvery);
+        }
+        this.parser = new TickParser(parser);
+        this.checkpointFileName = checkpointFileName;
+        this.checkpointEvery = checkpointEvery;
+    }
+
+    /**
+     * Gives every tick of the file to the handler, resuming from the checkpoint file if it exists.
+     * @param fileName is the CSV tick file, gzipped or not
+     * @param handler receives the ticks, usually the run method of the analyses
+     * @param parts are the analyses fed by the handler whose state is saved, always in the same order
+     * @return number of ticks of the whole file, including the ones processed before the checkpoint
+     */
+    public long run(String fileName, TickHandler handler, Checkpointable... parts) throws IOException {
+        TickParser runParser = new TickParser(parser);
+        Checkpointable[] allParts = parts;
+        if (runParser.getFilter() != null){
+            allParts = Arrays.copyOf(parts, parts.length + 1);
+            allParts[parts.length] = runParser.getFilter();
+        }
+        final Checkpointable[] saved = allParts;
+        long numTicksBefore = 0, offset = 0;
+        resumed = new File(checkpointFileName).exists();
+        if (resumed){
+            Checkpoint checkpoint = Checkpoint.load(checkpointFileName);
+            checkpoint.restore(saved);
+            numTicksBefore = checkpoint.getNumTicks();
+            offset = checkpoint.getFileOffset();
+        }
+        final long startOffset = offset;
+        long[] numTicks = {numTicksBefore};
+        try (InputStream in = Tools.openTickStream(fileName)) {
+            skipFully(in, startOffset);
+            runParser.parse(in, (bid, ask, time) -> {
+                handler.onTick(bid, ask, time);
+                numTicks[0]++;
+                if (numTicks[0] % checkpointEvery == 0){
+                    try {
+                        Checkpoint.take(numTicks[0], startOffset + runParser.getLineEnd(), saved).save(checkpointFileName);
+                    } catch (IOException ex){
+                        throw new UncheckedIOException(ex);
+                    }
+                }
+            });
+        } catch (UncheckedIOException ex){
+            throw ex.getCause();
+        }
+        new File(checkpointFileName).delete(); // the run is complete
+        return numTicks[0];
+    }
+
+    private static void skipFully(InputStream in, long numBytes) throws IOException {
+        while (numBytes > 0){
+            long skipped = in.skip(numBytes);
+            if (skipped <= 0){
+                if (in.read() < 0){
+                    throw new EOFException("The file is shorter than the offset of the checkpoint");
+                }
+                skipped = 1;
+            }
+            numBytes -= skipped;
+        }
+    }
+
+    /**
+     * @return true if the last run started from a checkpoint
+     */
+    public boolean isResumed() {
+        return resumed;
+    }
+}
@@ -0,0 +1,17 @@
+package tools;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Implemented by the classes whose state can be saved to a Checkpoint and restored later, so that a long run over
+ * tick data can be resumed instead of being started from the first tick. The state is written in a compact binary
+ * form and must be read back in exactly the same order.
+ */
+public interface Checkpointable {
+
+    void writeState(DataOutput out) throws IOException;
+
+    void readState(DataInput in) throws IOException;
+}
@@ -1,7 +1,6 @@
 package tools;
 import market.Price;
-
-import static tools.Tools.findBinId;
+import org.joda.time.DateTimeZone;
 
 /**
  * This the class which finds the volatility seasonality described in the paper of Dacorogna et. al. "A geographical
@@ -22,6 +21,7 @@ public class ClassicVolatilitySeasonality {
     private long dateFirstTick, dateLastTick; // the date in milliseconds of the first and the last tick in the sample
     private boolean firstTick;
     private long[] timestampsOfBins;
+    private WeekBinCalendar calendar; // finds the bins of the timestamps
 
     /**
      * @param lenOfBin is length (in milliseconds) of one bin
@@ -30,24 +30,37 @@ public class ClassicVolatilitySeasonality {
         this.lenOfBin = lenOfBin;
         nBinsInWeek = MLS_WEAK / lenOfBin;
         this.timestampsOfBins = createTimestampsOfBins(lenOfBin);
+        calendar = new WeekBinCalendar(timestampsOfBins);
         activityList = new double[(int) nBinsInWeek];
         firstTick = true;
     }
 
+    /**
+     * Sets the time zone in which the weeks begin (Monday 00:00) and the bins are counted, for example
+     * DateTimeZone.forID("America/New_York"). The default time zone is used otherwise.
+     */
+    public void setTimeZone(DateTimeZone zone){
+        calendar = new WeekBinCalendar(timestampsOfBins, zone);
+    }
+
     /**
      * This method should be called for every new price. It checks whether the algo finds a new DC IE at the given
      * price or not and adds +1 to the number of DC in the proper bin.
      * @param aPrice is every new price.
      */
     public void run(Price aPrice){
+        run(aPrice.getBid(), aPrice.getAsk(), aPrice.getTime());
+    }
+
+    public void run(long bid, long ask, long time){
         if (firstTick){
-            dateFirstTick = aPrice.getTime();
+            dateFirstTick = time;
             firstTick = false;
         } else {
-            dateLastTick = aPrice.getTime();
+            dateLastTick = time;
         }
-        double sqrtReturn = Math.pow(Math.log((double) aPrice.getAsk() / aPrice.getBid()), 2);
-        int binId = findBinId(aPrice.getTime(), timestampsOfBins);
+        double sqrtReturn = Math.pow(Math.log((double) ask / bid), 2);
+        int binId = calendar.findBinId(time);
         activityList[binId] += sqrtReturn;
     }
 
@@ -80,10 +93,16 @@ public class ClassicVolatilitySeasonality {
     private void returnsToVolatility(){
         double numWeeksInWholeSample = (double) (dateLastTick - dateFirstTick) / MLS_WEAK;
         int numMinPerBin = (int)(lenOfBin / MLS_MIN);
-        double numYearsInBin = (double) lenOfBin / MLS_YEAR;
+        double[] binLengths = calendar.getAverageBinLengths(dateFirstTick, dateLastTick); // differ from lenOfBin around DST transitions
         for (int i = 0; i < nBinsInWeek; i++){
+            double numReturns = numMinPerBin * (binLengths[i] / lenOfBin) - 1; // fewer in the weeks of a skipped hour
+            if (numReturns <= 0){ // at most one return in the bin on average, for example in the skipped hour
+                activityList[i] = 0;
+                continue;
+            }
+            double numYearsInBin = binLengths[i] / MLS_YEAR;
             activityList[i] /= numWeeksInWholeSample; // find average sum of sqrt returns in each bin
-            activityList[i] /= (numMinPerBin - 1);
+            activityList[i] /= numReturns;
             activityList[i] = Math.sqrt(activityList[i]);
             activityList[i] *= Math.sqrt(1.0 / numYearsInBin);
         }
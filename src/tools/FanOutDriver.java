@@ -0,0 +1,178 @@
+package tools;
+
+import market.TickHandler;
+import market.TickRing;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Created by author.
+ * Driver which reads and parses every tick of a file once and broadcasts it to all registered consumers, instead of
+ * reading the same file once per threshold and once more per analysis class. Consumers are TickHandlers, usually the
+ * run methods of the analyses:
+ *
+ *  FanOutDriver driver = new FanOutDriver(4, 1 << 16, TickRing.WaitStrategy.YIELD);
+ *  for (double threshold : thresholds){
+ *      InstantaneousVolatility instVolat = new InstantaneousVolatility(threshold);
+ *      driver.register(instVolat::run);
+ *      ...
+ *  }
+ *  driver.run(new FileInputStream(fileName), new TickParser(",", 3, dateFormat, 1, 2, 0));
+ *
+ * With numThreads = 0 all consumers run on the reading thread, one after another. Otherwise the consumers are spread
+ * round-robin over numThreads partitions; each partition has its own thread and its own TickRing which the reading
+ * thread fills. Every consumer is called by one thread only and sees the ticks in their order, so the analyses do not
+ * need to be thread-safe.
+ */
+public class FanOutDriver implements TickHandler {
+
+    private final int numThreads;
+    private final int ringCapacity;
+    private final TickRing.WaitStrategy waitStrategy;
+    private final List<TickHandler> consumers = new ArrayList<>();
+    private TickHandler[] inline = new TickHandler[0]; // consumers called by the reading thread
+    private TickRing[] rings = new TickRing[0];
+    private long numTicks;
+
+    /**
+     * @param numThreads is the number of consumer threads, 0 to run all consumers on the reading thread
+     * @param ringCapacity is the capacity of the ring of every partition
+     * @param waitStrategy is how the threads wait for each other
+     */
+    public FanOutDriver(int numThreads, int ringCapacity, TickRing.WaitStrategy waitStrategy){
+        this.numThreads = Math.max(0, numThreads);
+        this.ringCapacity = ringCapacity;
+        this.waitStrategy = waitStrategy;
+    }
+
+    /**
+     * Adds a consumer, must be called before run.
+     */
+    public void register(TickHandler consumer){
+        consumers.add(consumer);
+    }
+
+    /**
+     * Parses the whole stream once and gives every tick to all consumers.
+     * @param in is the input, it is not closed by the method
+     * @return number of ticks
+     */
+    public long run(InputStream in, TickParser parser) throws IOException {
+        return run(() -> parser.parse(in, this));
+    }
+
+    /**
+     * Decodes the whole tick store once and gives every tick to all consumers.
+     * @return number of ticks
+     */
+    public long run(TickStoreReader reader) throws IOException {
+        return run(() -> reader.read(this));
+    }
+
+    private interface Source {
+        void readAll() throws IOException;
+    }
+
+    private long run(Source source) throws IOException {
+        numTicks = 0;
+        if (numThreads == 0 || consumers.size() <= 1){
+            inline = consumers.toArray(new TickHandler[0]);
+            rings = new TickRing[0];
+            source.readAll();
+            return numTicks;
+        }
+        int numPartitions = Math.min(numThreads, consumers.size());
+        inline = new TickHandler[0];
+        rings = new TickRing[numPartitions];
+        Thread[] threads = new Thread[numPartitions];
+        Throwable[] errors = new Throwable[numPartitions];
+        for (int p = 0; p < numPartitions; p++){
+            List<TickHandler> partition = new ArrayList<>();
+            for (int c = p; c < consumers.size(); c += numPartitions){
+                partition.add(consumers.get(c));
+            }
+            TickHandler[] handlers = partition.toArray(new TickHandler[0]);
+            TickRing ring = new TickRing(ringCapacity, waitStrategy);
+            final int index = p;
+            rings[p] = ring;
+            threads[p] = new Thread(() -> {
+                try {
+                    ring.consume((bid, ask, time) -> {
+                        for (TickHandler handler : handlers){
+                            handler.onTick(bid, ask, time);
+                        }
+                    });
+                } catch (Throwable ex){
+                    errors[index] = ex;
+                    ring.close(); // the reading thread stops when it finds the ring full
+                }
+            }, "fan-out-" + p);
+            threads[p].start();
+        }
+        Throwable readError = null;
+        try {
+            source.readAll();
+        } catch (IOException | RuntimeException ex){
+            readError = ex;
+        } finally {
+            for (TickRing ring : rings){
+                ring.close();
+            }
+            for (Thread thread : threads){
+                try {
+                    thread.join();
+                } catch (InterruptedException ex){
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+        for (Throwable error : errors){
+            if (error != null){
+                throw new RuntimeException("A consumer failed", error);
+            }
+        }
+        if (readError instanceof IOException){
+            throw (IOException) readError;
+        } else if (readError != null){
+            throw (RuntimeException) readError;
+        }
+        return numTicks;
+    }
+
+    /**
+     * Broadcasts one tick, called by the source.
+     */
+    @Override
+    public void onTick(long bid, long ask, long time){
+        for (TickHandler handler : inline){
+            handler.onTick(bid, ask, time);
+        }
+        for (TickRing ring : rings){
+            ring.onTick(bid, ask, time);
+        }
+        numTicks++;
+    }
+
+    public int getNumConsumers() {
+        return consumers.size();
+    }
+
+    public long getNumTicks() {
+        return numTicks;
+    }
+
+    /**
+     * @return the total time (in nanoseconds) every partition waited for ticks during the last run, long waits mean
+     * that the reading is the bottleneck
+     */
+    public long[] getPartitionWaitNanos(){
+        long[] waits = new long[rings.length];
+        for (int p = 0; p < rings.length; p++){
+            waits[p] = rings[p].getConsumerWaitNanos();
+        }
+        return waits;
+    }
+}
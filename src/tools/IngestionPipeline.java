@@ -0,0 +1,137 @@
+package tools;
+
+import market.TickHandler;
+import market.TickRing;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Created by author.
+ * Two-stage pipeline which overlaps parsing and the DC computations: a parser thread reads the input and puts the
+ * ticks into a TickRing, while the calling thread takes them from the ring and gives them to the consumer (DcOS, an
+ * analysis or a fan-out of several of them).
+ *
+ * After a run the pipeline tells how fast each stage was when it was not waiting for the other one, see report(). The
+ * stage with the lower throughput is the bottleneck.
+ *
+ * Typical usage:
+ *  IngestionPipeline pipeline = new IngestionPipeline(new TickParser(",", 5, dateFormat, 1, 2, 0), 1 << 16, TickRing.WaitStrategy.YIELD);
+ *  pipeline.run(new FileInputStream(fileName), instantaneousVolatility::run);
+ *  System.out.println(pipeline.report());
+ */
+public class IngestionPipeline {
+
+    private final TickParser parser; // settings of the parser of every run
+    private TickParser runParser; // the parser of the last run, with its counters and its filter
+    private final int ringCapacity;
+    private final TickRing.WaitStrategy waitStrategy;
+    private long numTicks;
+    private long elapsedNanos;
+    private long parserNanos, parserWaitNanos, consumerWaitNanos; // of the last run
+
+    /**
+     * @param parser describes the layout of the lines. If it has a TickFilter, the ticks are filtered on the parser thread.
+     *               Every run uses a new copy, so a run does not depend on the previous one
+     * @param ringCapacity is the number of ticks the ring keeps, for example 65536
+     * @param waitStrategy is how a stage waits for the other one
+     */
+    public IngestionPipeline(TickParser parser, int ringCapacity, TickRing.WaitStrategy waitStrategy){
+        this.parser = new TickParser(parser);
+        this.runParser = new TickParser(parser);
+        this.ringCapacity = ringCapacity;
+        this.waitStrategy = waitStrategy;
+    }
+
+    /**
+     * Parses the whole stream on a separate thread and gives the ticks to the consumer on the calling thread.
+     * @param in is the input, it is not closed by the method
+     * @param consumer receives all ticks in their order
+     * @return number of ticks
+     */
+    public long run(InputStream in, TickHandler consumer) throws IOException {
+        TickParser streamParser = new TickParser(parser); // the filter of the previous stream is not carried over
+        runParser = streamParser;
+        TickRing ring = new TickRing(ringCapacity, waitStrategy);
+        Throwable[] parserError = new Throwable[1];
+        long[] parserTime = new long[1];
+        Thread parserThread = new Thread(() -> {
+            long start = System.nanoTime();
+            try {
+                streamParser.parse(in, ring);
+            } catch (Throwable ex){
+                parserError[0] = ex;
+            } finally {
+                parserTime[0] = System.nanoTime() - start;
+                ring.close();
+            }
+        }, "tick-parser");
+        long start = System.nanoTime();
+        parserThread.start();
+        try {
+            numTicks = ring.consume(consumer);
+        } finally {
+            ring.close(); // releases the parser if it waits for free slots because the consumer failed
+            try {
+                parserThread.join();
+            } catch (InterruptedException ex){
+                Thread.currentThread().interrupt();
+            }
+        }
+        elapsedNanos = System.nanoTime() - start;
+        parserNanos = parserTime[0];
+        parserWaitNanos = ring.getProducerWaitNanos();
+        consumerWaitNanos = ring.getConsumerWaitNanos();
+        if (parserError[0] instanceof IOException){
+            throw (IOException) parserError[0];
+        } else if (parserError[0] != null){
+            throw new IOException("Parsing failed", parserError[0]);
+        }
+        return numTicks;
+    }
+
+    /**
+     * @return ticks per second of the parser stage when it did not wait for free slots
+     */
+    public double getParserThroughput(){
+        return numTicks / Math.max(1e-9, (parserNanos - parserWaitNanos) / 1e9);
+    }
+
+    /**
+     * @return ticks per second of the consumer stage when it did not wait for ticks
+     */
+    public double getConsumerThroughput(){
+        return numTicks / Math.max(1e-9, (elapsedNanos - consumerWaitNanos) / 1e9);
+    }
+
+    /**
+     * @return one line with the throughput of both stages and of the whole pipeline
+     */
+    public String report(){
+        return String.format("%d ticks in %.3f s: %.0f ticks/s overall, parser %.0f ticks/s (waited %.3f s), consumer %.0f ticks/s (waited %.3f s)",
+                numTicks, elapsedNanos / 1e9, numTicks / Math.max(1e-9, elapsedNanos / 1e9),
+                getParserThroughput(), parserWaitNanos / 1e9, getConsumerThroughput(), consumerWaitNanos / 1e9);
+    }
+
+    public long getNumTicks() {
+        return numTicks;
+    }
+
+    public long getElapsedNanos() {
+        return elapsedNanos;
+    }
+
+    /**
+     * @return number of lines of the last run which could not be parsed
+     */
+    public long getNumSkipped() {
+        return runParser.getNumSkipped();
+    }
+
+    /**
+     * @return the filter of the parser stage of the last run with its counters, null if the parser has no filter
+     */
+    public TickFilter getFilter() {
+        return runParser.getFilter();
+    }
+}
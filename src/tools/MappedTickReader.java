@@ -0,0 +1,292 @@
+package tools;
+
+import market.TickBlock;
+import market.TickHandler;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+
+/**
+ * Created by author.
+ * Reader of large tick files which replaces the BufferedReader.readLine() loops. The file is memory-mapped by
+ * FileChannel.map in segments (a mapping cannot be longer than 2 GB), every segment is cut into chunks on line
+ * boundaries and the chunks are parsed on worker threads, each with its own TickParser, into TickBlock columns. The
+ * blocks are handed to the consumer on the calling thread in the order of the file, so the analyses see the ticks in
+ * the same order as with the line-by-line reading.
+ *
+ * Only a few chunks are in flight at the same time, so the memory usage does not depend on the size of the file.
+ *
+ * A gzipped file (".gz") cannot be mapped. It is decompressed by Tools.openTickStream (in parallel if it was written by
+ * ParallelGzip.compress), the text is cut into chunks on line boundaries as it comes and the chunks are parsed on the
+ * workers in the same way.
+ *
+ * If the parser has a TickFilter, the workers only parse and one copy of the filter checks the blocks on the calling
+ * thread in the order of the file, before they are handed to the consumer. So the filtered ticks are the same as with
+ * TickParser.parse and do not depend on the size of the chunks; the filter is cheap next to the parsing.
+ */
+public class MappedTickReader {
+
+    private static final long SEGMENT_SIZE = 1L << 30; // bytes mapped at once
+
+    private final TickParser parser; // settings of the parsers of the workers, without the filter
+    private final TickFilter filterSettings; // null without a filter
+    private final int numThreads;
+    private final int chunkSize; // approximate number of bytes per chunk
+    private long numSkipped; // lines which could not be parsed during the last read
+    private long numTicks; // ticks delivered so far during the last read
+    private TickFilter filter; // filters the blocks of the last read in their order, null without a filter
+
+    /**
+     * @param parser gives the format of the lines, every worker uses its own copy. Its filter is applied by the reader
+     * @param numThreads is the number of parsing threads
+     * @param chunkSize is the approximate number of bytes of a chunk, for example 4 MB
+     */
+    public MappedTickReader(TickParser parser, int numThreads, int chunkSize){
+        if (chunkSize < 1){
+            throw new IllegalArgumentException("The chunk size should be positive: " + chunkSize);
+        }
+        this.parser = new TickParser(parser).setFilter(null);
+        filterSettings = parser.getFilter();
+        this.numThreads = Math.max(1, numThreads);
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * Reads the whole file and gives the parsed blocks to the consumer in the order of the file. Every block is a new
+     * instance, so the consumer may keep it.
+     * @param fileName is the CSV tick file, gzipped or not
+     * @return number of parsed ticks
+     */
+    public long read(String fileName, Consumer<TickBlock> consumer) throws IOException {
+        numSkipped = 0;
+        filter = filterSettings == null ? null : new TickFilter(filterSettings);
+        numTicks = 0;
+        ArrayDeque<Future<ParsedChunk>> inFlight = new ArrayDeque<>();
+        ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+        try {
+            if (fileName.endsWith(".gz")){
+                readStream(fileName, inFlight, executor, consumer);
+            } else {
+                readMapped(fileName, inFlight, executor, consumer);
+            }
+            while (!inFlight.isEmpty()){
+                deliver(inFlight.poll(), consumer);
+            }
+            if (filter != null && filter.flush()){ // the last tick held back by the filter
+                TickBlock last = new TickBlock(1);
+                last.add(filter.getBid(), filter.getAsk(), filter.getTime());
+                deliver(last, consumer);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        return numTicks;
+    }
+
+    private void readMapped(String fileName, ArrayDeque<Future<ParsedChunk>> inFlight, ExecutorService executor,
+                            Consumer<TickBlock> consumer) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(fileName, "r"); FileChannel channel = file.getChannel()) {
+            long fileSize = channel.size();
+            long segmentStart = 0;
+            while (segmentStart < fileSize){
+                long segmentLength = Math.min(SEGMENT_SIZE, fileSize - segmentStart);
+                MappedByteBuffer segment = channel.map(FileChannel.MapMode.READ_ONLY, segmentStart, segmentLength);
+                int segmentEnd = (int) segmentLength;
+                if (segmentStart + segmentLength < fileSize){ // the segment ends at the last complete line
+                    segmentEnd = lastLineEnd(segment, 0, segmentEnd);
+                    if (segmentEnd == 0){
+                        throw new IOException("A line is longer than " + SEGMENT_SIZE + " bytes");
+                    }
+                }
+                int chunkStart = 0;
+                while (chunkStart < segmentEnd){
+                    int chunkEnd = segmentEnd;
+                    if (segmentEnd - chunkStart > chunkSize){
+                        chunkEnd = lastLineEnd(segment, chunkStart, chunkStart + chunkSize);
+                        if (chunkEnd == chunkStart){ // a line longer than a chunk
+                            chunkEnd = nextLineEnd(segment, chunkStart + chunkSize, segmentEnd);
+                        }
+                    }
+                    final int from = chunkStart, to = chunkEnd;
+                    submit(() -> {
+                        byte[] bytes = new byte[to - from];
+                        ByteBuffer view = segment.duplicate(); // own position for every thread
+                        view.position(from);
+                        view.get(bytes);
+                        return parseChunk(bytes, bytes.length);
+                    }, inFlight, executor, consumer);
+                    chunkStart = chunkEnd;
+                }
+                segmentStart += segmentEnd;
+            }
+        }
+    }
+
+    /**
+     * Cuts the decompressed text of a gzipped file into chunks of complete lines.
+     */
+    private void readStream(String fileName, ArrayDeque<Future<ParsedChunk>> inFlight, ExecutorService executor,
+                            Consumer<TickBlock> consumer) throws IOException {
+        try (InputStream in = Tools.openTickStream(fileName)) {
+            byte[] buffer = new byte[chunkSize];
+            int length = 0;
+            int read;
+            while ((read = in.read(buffer, length, buffer.length - length)) >= 0){
+                length += read;
+                if (length < buffer.length){
+                    continue;
+                }
+                int end = lastLineEnd(buffer, length);
+                if (end == 0){ // a line longer than the buffer
+                    buffer = Arrays.copyOf(buffer, buffer.length * 2);
+                    continue;
+                }
+                byte[] next = new byte[chunkSize + length - end]; // the beginning of the incomplete line goes on
+                System.arraycopy(buffer, end, next, 0, length - end);
+                final byte[] bytes = buffer;
+                final int to = end;
+                submit(() -> parseChunk(bytes, to), inFlight, executor, consumer);
+                buffer = next;
+                length -= end;
+            }
+            if (length > 0){
+                final byte[] bytes = buffer;
+                final int to = length;
+                submit(() -> parseChunk(bytes, to), inFlight, executor, consumer);
+            }
+        }
+    }
+
+    /**
+     * Gives a chunk to the workers. If too many chunks are in flight, the oldest one is delivered first.
+     */
+    private void submit(Callable<ParsedChunk> task, ArrayDeque<Future<ParsedChunk>> inFlight, ExecutorService executor,
+                        Consumer<TickBlock> consumer) throws IOException {
+        if (inFlight.size() == 2 * numThreads){
+            deliver(inFlight.poll(), consumer);
+        }
+        inFlight.add(executor.submit(task));
+    }
+
+    /**
+     * Reads the whole file and passes every tick to the handler.
+     * @return number of parsed ticks
+     */
+    public long read(String fileName, TickHandler handler) throws IOException {
+        return read(fileName, block -> block.forEach(handler));
+    }
+
+    private static class ParsedChunk {
+        final TickBlock block;
+        final long numSkipped;
+
+        ParsedChunk(TickBlock block, long numSkipped){
+            this.block = block;
+            this.numSkipped = numSkipped;
+        }
+    }
+
+    private ParsedChunk parseChunk(byte[] bytes, int length){
+        TickParser chunkParser = new TickParser(parser);
+        TickBlock block = new TickBlock(length / 24); // a tick line is rarely shorter than 24 bytes
+        chunkParser.parseLines(bytes, 0, length, block);
+        return new ParsedChunk(block, chunkParser.getNumSkipped());
+    }
+
+    private void deliver(Future<ParsedChunk> future, Consumer<TickBlock> consumer) throws IOException {
+        ParsedChunk chunk;
+        try {
+            chunk = future.get();
+        } catch (InterruptedException | ExecutionException ex){
+            throw new IOException("Parsing of a chunk failed", ex);
+        }
+        numSkipped += chunk.numSkipped;
+        if (filter != null){
+            filter(chunk.block);
+        }
+        deliver(chunk.block, consumer);
+    }
+
+    private void deliver(TickBlock block, Consumer<TickBlock> consumer){
+        block.setFirstIndex(numTicks);
+        numTicks += block.size();
+        consumer.accept(block);
+    }
+
+    /**
+     * Keeps only the ticks accepted by the filter, in place: the filter gives at most one tick per checked one, so an
+     * accepted tick never overwrites a tick not checked yet.
+     */
+    private void filter(TickBlock block){
+        long[] bids = block.getBids(), asks = block.getAsks(), times = block.getTimes();
+        int size = block.size();
+        block.clear();
+        for (int i = 0; i < size; i++){
+            if (filter.accept(bids[i], asks[i], times[i])){
+                block.add(filter.getBid(), filter.getAsk(), filter.getTime());
+            }
+        }
+    }
+
+    /**
+     * @return position after the last line break in [from, to) or from if there is none
+     */
+    private static int lastLineEnd(MappedByteBuffer buffer, int from, int to){
+        for (int i = to - 1; i >= from; i--){
+            if (buffer.get(i) == '\n'){
+                return i + 1;
+            }
+        }
+        return from;
+    }
+
+    /**
+     * @return position after the last line break in [0, to) or 0 if there is none
+     */
+    private static int lastLineEnd(byte[] buffer, int to){
+        for (int i = to - 1; i >= 0; i--){
+            if (buffer[i] == '\n'){
+                return i + 1;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * @return position after the first line break in [from, to) or to if there is none
+     */
+    private static int nextLineEnd(MappedByteBuffer buffer, int from, int to){
+        for (int i = from; i < to; i++){
+            if (buffer.get(i) == '\n'){
+                return i + 1;
+            }
+        }
+        return to;
+    }
+
+    /**
+     * @return number of lines which could not be parsed during the last read (headers, empty lines...)
+     */
+    public long getNumSkipped() {
+        return numSkipped;
+    }
+
+    /**
+     * @return the filter of the last read with its counters, null if the parser has no filter
+     */
+    public TickFilter getFilter() {
+        return filter;
+    }
+}
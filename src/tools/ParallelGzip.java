@@ -0,0 +1,232 @@
+package tools;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Created by author.
+ * Gzipped tick archives which can be decompressed on several cores using only java.util.zip. A gzip file may consist of
+ * several members (independent gzip streams written one after another), which every gzip tool reads as one stream.
+ * compress() writes such a file with members of about memberSize bytes of text, cut on line boundaries, and a small
+ * index next to it (fileName + ".gzi") with the offsets of the members. open() uses the index to inflate the members
+ * in parallel and gives their bytes in order as one InputStream; a .gz file without an index is read by a usual
+ * GZIPInputStream.
+ *
+ * Index: MAGIC, VERSION, number of members (int), then for every member its offset in the gzip file and its offset in
+ * the uncompressed text (longs), then the length of the gzip file and of the text (longs).
+ */
+public class ParallelGzip {
+
+    private static final int MAGIC = 0x44434749; // "DCGI"
+    private static final int VERSION = 1;
+    public static final String INDEX_EXTENSION = ".gzi";
+
+    /**
+     * Compresses a text file into a multi-member gzip file and writes its index.
+     * @param inFileName is the text file (a CSV tick file, for example)
+     * @param gzFileName is the gzip file to create, the index is gzFileName + ".gzi"
+     * @param memberSize is the approximate number of text bytes per member, for example 4 MB
+     * @return number of members
+     */
+    public static int compress(String inFileName, String gzFileName, int memberSize) throws IOException {
+        try (InputStream in = new FileInputStream(inFileName)) {
+            return compress(in, gzFileName, memberSize);
+        }
+    }
+
+    /**
+     * The same as compress for a file, but the text comes from a stream (which is not closed).
+     */
+    public static int compress(InputStream in, String gzFileName, int memberSize) throws IOException {
+        ByteArrayOutputStream offsets = new ByteArrayOutputStream();
+        DataOutputStream index = new DataOutputStream(offsets);
+        byte[] buffer = new byte[memberSize + (1 << 16)];
+        int length = 0; // bytes in the buffer
+        int numMembers = 0;
+        long compressedOffset = 0, textOffset = 0;
+        try (FileOutputStream out = new FileOutputStream(gzFileName)) {
+            boolean endOfInput = false;
+            while (!endOfInput || length > 0){
+                while (!endOfInput && length < memberSize){
+                    int read = in.read(buffer, length, buffer.length - length);
+                    if (read < 0){
+                        endOfInput = true;
+                    } else {
+                        length += read;
+                    }
+                }
+                int memberLength = length;
+                if (!endOfInput){ // the member ends at the last line break
+                    while (memberLength > 0 && buffer[memberLength - 1] != '\n'){
+                        memberLength--;
+                    }
+                    if (memberLength == 0){
+                        memberLength = length; // a line longer than the buffer
+                    }
+                }
+                ByteArrayOutputStream member = new ByteArrayOutputStream(memberLength / 4);
+                try (GZIPOutputStream gzip = new GZIPOutputStream(member, 1 << 16)) {
+                    gzip.write(buffer, 0, memberLength);
+                }
+                member.writeTo(out);
+                index.writeLong(compressedOffset);
+                index.writeLong(textOffset);
+                compressedOffset += member.size();
+                textOffset += memberLength;
+                numMembers++;
+                System.arraycopy(buffer, memberLength, buffer, 0, length - memberLength);
+                length -= memberLength;
+            }
+        }
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(gzFileName + INDEX_EXTENSION)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(numMembers);
+            offsets.writeTo(out);
+            out.writeLong(compressedOffset);
+            out.writeLong(textOffset);
+        }
+        return numMembers;
+    }
+
+    /**
+     * Opens a gzip file for reading. If the file has an index, the members are inflated by numThreads threads,
+     * otherwise a GZIPInputStream is returned.
+     * @return the uncompressed bytes of the file
+     */
+    public static InputStream open(String gzFileName, int numThreads) throws IOException {
+        File indexFile = new File(gzFileName + INDEX_EXTENSION);
+        if (!indexFile.exists() || numThreads < 2){
+            return new GZIPInputStream(new FileInputStream(gzFileName), 1 << 16);
+        }
+        long[] compressedOffsets, textOffsets;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION){
+                throw new IOException("Not a gzip index: " + indexFile);
+            }
+            int numMembers = in.readInt();
+            compressedOffsets = new long[numMembers + 1];
+            textOffsets = new long[numMembers + 1];
+            for (int i = 0; i <= numMembers; i++){
+                compressedOffsets[i] = in.readLong();
+                textOffsets[i] = in.readLong();
+            }
+        }
+        FileChannel channel = FileChannel.open(Paths.get(gzFileName), StandardOpenOption.READ);
+        if (channel.size() != compressedOffsets[compressedOffsets.length - 1]){
+            channel.close();
+            throw new IOException("The index does not belong to " + gzFileName);
+        }
+        return new ParallelInputStream(channel, compressedOffsets, textOffsets, numThreads);
+    }
+
+    /**
+     * Gives the inflated members in order, at most 2 * numThreads members are inflated ahead.
+     */
+    private static class ParallelInputStream extends InputStream {
+
+        private final FileChannel channel;
+        private final long[] compressedOffsets, textOffsets;
+        private final ExecutorService executor;
+        private final ArrayDeque<Future<byte[]>> inFlight = new ArrayDeque<>();
+        private final int maxInFlight;
+        private int nextMember; // the next member to submit
+        private byte[] current = new byte[0];
+        private int position;
+
+        ParallelInputStream(FileChannel channel, long[] compressedOffsets, long[] textOffsets, int numThreads){
+            this.channel = channel;
+            this.compressedOffsets = compressedOffsets;
+            this.textOffsets = textOffsets;
+            executor = Executors.newFixedThreadPool(numThreads, runnable -> {
+                Thread thread = new Thread(runnable, "gunzip");
+                thread.setDaemon(true);
+                return thread;
+            });
+            maxInFlight = 2 * numThreads;
+            submit();
+        }
+
+        private void submit(){
+            while (inFlight.size() < maxInFlight && nextMember < compressedOffsets.length - 1){
+                final int member = nextMember++;
+                inFlight.add(executor.submit(() -> inflate(member)));
+            }
+        }
+
+        private byte[] inflate(int member) throws IOException {
+            byte[] compressed = new byte[(int) (compressedOffsets[member + 1] - compressedOffsets[member])];
+            ByteBuffer target = ByteBuffer.wrap(compressed);
+            long offset = compressedOffsets[member];
+            while (target.hasRemaining()){
+                int read = channel.read(target, offset + target.position()); // positional read, safe for threads
+                if (read < 0){
+                    throw new EOFException("Truncated gzip member " + member);
+                }
+            }
+            byte[] text = new byte[(int) (textOffsets[member + 1] - textOffsets[member])];
+            try (DataInputStream in = new DataInputStream(new GZIPInputStream(new ByteArrayInputStream(compressed), 1 << 16))) {
+                in.readFully(text);
+            }
+            return text;
+        }
+
+        /**
+         * @return false if there are no members anymore
+         */
+        private boolean nextMember() throws IOException {
+            while (position == current.length){
+                Future<byte[]> future = inFlight.poll();
+                if (future == null){
+                    return false;
+                }
+                try {
+                    current = future.get();
+                } catch (InterruptedException | ExecutionException ex){
+                    throw new IOException("Decompression of a member failed", ex);
+                }
+                position = 0;
+                submit();
+            }
+            return true;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (!nextMember()){
+                return -1;
+            }
+            return current[position++] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            if (length == 0){
+                return 0;
+            }
+            if (!nextMember()){
+                return -1;
+            }
+            int n = Math.min(length, current.length - position);
+            System.arraycopy(current, position, buffer, offset, n);
+            position += n;
+            return n;
+        }
+
+        @Override
+        public void close() throws IOException {
+            executor.shutdownNow();
+            channel.close();
+        }
+    }
+}
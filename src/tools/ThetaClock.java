@@ -0,0 +1,214 @@
+package tools;
+
+import market.TickHandler;
+import org.joda.time.DateTimeZone;
+
+/**
+ * Created by author.
+ * Continuous theta time (Dacorogna et. al. 1993): the clock runs fast when the market is active and stops when it is
+ * closed, so intervals of equal theta time hold equal activity. ThetaTime.thetaTimestampsFromSeasonalityArray gives
+ * only the boundaries of bins; this class maps any physical time to a theta time and back, so ticks can be re-stamped
+ * (see restamp) and waiting times between events measured in theta time.
+ *
+ * The weekly activity seasonality (equal bins of the local week, as computed by the seasonality classes) is turned
+ * into a piecewise-linear cumulative activity table normalized to one week. At Monday 00:00 (local time of the zone)
+ * theta time equals the local time; during the week it advances by the cumulative activity, so every week lasts
+ * exactly one week of theta time. In the weeks with a DST transition the activity of the local hours is used as they
+ * come (the repeated hour twice, the skipped one never) and the week is rescaled to one week of theta time. The weeks
+ * are taken from a WeekBinCalendar, so a conversion within the current piece of the week is a few arithmetic
+ * operations and a lookup in the table.
+ *
+ * An instance keeps the current piece, so it should be used by one thread only.
+ */
+public class ThetaClock {
+
+    private static final long MLS_WEEK = 604800000L; // number of milliseconds in a week
+    private static final long MONDAY_EPOCH = 345600000L; // 1970-01-05 00:00, the first Monday after the epoch
+    private static final int INVERSE_BUCKETS_PER_BIN = 4;
+
+    private final WeekBinCalendar calendar; // weeks and DST transitions of the zone
+    private final int numBins;
+    private final long lenOfBin; // the last bin takes also the rest of the week
+    private final double[] cumulative; // cumulative activity at the beginning of every bin and at the end of the week
+    private final double[] rates; // activity per millisecond of local time in every bin
+    private final int[] inverseBins; // the first bin which ends after the beginning of every bucket of activity
+    private double[] pieceThetas = new double[0]; // theta time at the beginning of every piece of the calendar
+    private double[] pieceScales = new double[0]; // rescaling of the activity of the week of the piece
+    private int tableVersion = -1; // the version of the table of the calendar the arrays above belong to
+    private long currentStart = 1, currentEnd = 0, currentBase; // the current piece in physical time
+    private double currentThetaStart = 1, currentThetaEnd = 0, currentScale, currentCumulative;
+
+    /**
+     * A clock in the default time zone.
+     * @param weeklyActivitySeasonality is the activity in equal bins of a week beginning on Monday 00:00
+     */
+    public ThetaClock(double[] weeklyActivitySeasonality){
+        this(weeklyActivitySeasonality, DateTimeZone.getDefault());
+    }
+
+    /**
+     * @param weeklyActivitySeasonality is the activity in equal bins of a week beginning on Monday 00:00, all values
+     *                                  should be non-negative and the sum positive
+     * @param zone is the time zone of the weeks of the seasonality
+     */
+    public ThetaClock(double[] weeklyActivitySeasonality, DateTimeZone zone){
+        numBins = weeklyActivitySeasonality.length;
+        lenOfBin = MLS_WEEK / numBins;
+        double sumWeeklyActivity = 0;
+        for (double activity : weeklyActivitySeasonality){
+            if (activity < 0 || Double.isNaN(activity)){
+                throw new IllegalArgumentException("The activity should be non-negative: " + activity);
+            }
+            sumWeeklyActivity += activity;
+        }
+        if (!(sumWeeklyActivity > 0)){
+            throw new IllegalArgumentException("The weekly activity should be positive");
+        }
+        cumulative = new double[numBins + 1];
+        rates = new double[numBins];
+        for (int i = 0; i < numBins; i++){
+            double share = weeklyActivitySeasonality[i] / sumWeeklyActivity * MLS_WEEK; // in theta milliseconds
+            rates[i] = share / binLength(i);
+            cumulative[i + 1] = cumulative[i] + share;
+        }
+        cumulative[numBins] = MLS_WEEK;
+        inverseBins = new int[numBins * INVERSE_BUCKETS_PER_BIN];
+        int bin = 0;
+        for (int j = 0; j < inverseBins.length; j++){
+            double activity = (double) j * MLS_WEEK / inverseBins.length;
+            while (bin < numBins - 1 && cumulative[bin + 1] <= activity){
+                bin++;
+            }
+            inverseBins[j] = bin;
+        }
+        calendar = new WeekBinCalendar(null, zone);
+    }
+
+    private long binLength(int bin){
+        return bin == numBins - 1 ? MLS_WEEK - bin * lenOfBin : lenOfBin;
+    }
+
+    /**
+     * @return cumulative activity from Monday 00:00 till the given local time of the week
+     */
+    private double cumulativeAt(long wall){
+        int bin = (int) Math.min(Math.max(0, wall) / lenOfBin, numBins - 1);
+        return cumulative[bin] + (wall - bin * lenOfBin) * rates[bin];
+    }
+
+    /**
+     * @return local time of the week at which the cumulative activity reaches the given value. In a period without
+     * activity the end of the period is returned
+     */
+    private double wallAt(double activity){
+        int bucket = (int) Math.min(Math.max(0, activity) / MLS_WEEK * inverseBins.length, inverseBins.length - 1);
+        int bin = inverseBins[bucket];
+        while (bin < numBins - 1 && cumulative[bin + 1] <= activity){
+            bin++;
+        }
+        return bin * lenOfBin + (rates[bin] > 0 ? (activity - cumulative[bin]) / rates[bin] : 0);
+    }
+
+    /**
+     * Computes theta time at the beginning of every piece of the table of the calendar.
+     */
+    private void synchronize(){
+        if (tableVersion == calendar.getTableVersion()){
+            return;
+        }
+        int numPieces = calendar.getNumPieces();
+        pieceThetas = new double[numPieces + 1];
+        pieceScales = new double[numPieces];
+        int weekFirst = 0;
+        while (weekFirst < numPieces){
+            int weekEnd = weekFirst + 1; // the first piece of the next week
+            while (weekEnd < numPieces && !calendar.isWeekStart(weekEnd)){
+                weekEnd++;
+            }
+            double weekActivity = 0;
+            for (int i = weekFirst; i < weekEnd; i++){
+                weekActivity += pieceActivity(i);
+            }
+            if (!(weekActivity > 0)){
+                throw new IllegalStateException("No activity in the week of " + calendar.getPieceStart(weekFirst));
+            }
+            long week = Math.floorDiv(calendar.getPieceStart(weekFirst) - MONDAY_EPOCH + MLS_WEEK / 2, MLS_WEEK);
+            double theta = MONDAY_EPOCH + week * MLS_WEEK;
+            double scale = MLS_WEEK / weekActivity;
+            for (int i = weekFirst; i < weekEnd; i++){
+                pieceThetas[i] = theta;
+                pieceScales[i] = scale;
+                theta += scale * pieceActivity(i);
+            }
+            pieceThetas[weekEnd] = MONDAY_EPOCH + (week + 1) * MLS_WEEK;
+            weekFirst = weekEnd;
+        }
+        tableVersion = calendar.getTableVersion();
+        currentStart = 1;
+        currentEnd = 0;
+        currentThetaStart = 1;
+        currentThetaEnd = 0;
+    }
+
+    private double pieceActivity(int piece){
+        long base = calendar.getPieceBase(piece);
+        return cumulativeAt(calendar.getPieceStart(piece + 1) - base) - cumulativeAt(calendar.getPieceStart(piece) - base);
+    }
+
+    private void setCurrentPiece(int piece){
+        currentStart = calendar.getPieceStart(piece);
+        currentEnd = calendar.getPieceStart(piece + 1);
+        currentBase = calendar.getPieceBase(piece);
+        currentThetaStart = pieceThetas[piece];
+        currentThetaEnd = pieceThetas[piece + 1];
+        currentScale = pieceScales[piece];
+        currentCumulative = cumulativeAt(currentStart - currentBase);
+    }
+
+    /**
+     * @param time is a physical time in milliseconds
+     * @return the theta time in milliseconds
+     */
+    public double toTheta(long time){
+        if (time < currentStart || time >= currentEnd){
+            int piece = calendar.pieceOf(time);
+            synchronize();
+            setCurrentPiece(piece);
+        }
+        return currentThetaStart + currentScale * (cumulativeAt(time - currentBase) - currentCumulative);
+    }
+
+    /**
+     * @param theta is a theta time in milliseconds
+     * @return the physical time (rounded to a millisecond) at which the clock shows the given theta time. If the clock
+     * stands still at that theta time (the market is closed), the end of the closed period is returned
+     */
+    public long toPhysical(double theta){
+        if (!(theta >= currentThetaStart && theta < currentThetaEnd)){
+            long week = Math.floorDiv((long) Math.floor(theta) - MONDAY_EPOCH, MLS_WEEK);
+            int piece = calendar.pieceOf(MONDAY_EPOCH + week * MLS_WEEK + MLS_WEEK / 2); // a time inside the same week
+            synchronize();
+            while (piece > 0 && pieceThetas[piece] > theta){
+                piece--;
+            }
+            while (piece < calendar.getNumPieces() - 1 && pieceThetas[piece + 1] <= theta){
+                piece++;
+            }
+            setCurrentPiece(piece);
+        }
+        double wall = wallAt(currentCumulative + (theta - currentThetaStart) / currentScale);
+        return Math.min(currentBase + Math.round(wall), currentEnd);
+    }
+
+    /**
+     * @return a handler which passes the ticks to the given one with their times converted to theta time (rounded
+     * down to a millisecond)
+     */
+    public TickHandler restamp(TickHandler next){
+        return (bid, ask, time) -> next.onTick(bid, ask, (long) Math.floor(toTheta(time)));
+    }
+
+    public DateTimeZone getZone() {
+        return calendar.getZone();
+    }
+}
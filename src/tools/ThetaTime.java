@@ -4,7 +4,8 @@ package tools;
  * This class realizes the concept of theta time described in the work of Docorogna et. al. 1993 "A geographical model
  * for the daily and weekly seasonal volatility in the foreign exchange market". In the nutshell: theta time is used to
  * define time intervals of equal activity (in contrast to the physical time where the time distance between two ticks
- * is constant).
+ * is constant). ThetaClock gives the continuous mapping between physical and theta time built from the same
+ * seasonality array.
  */
 public class ThetaTime {
 
@@ -0,0 +1,274 @@
+package tools;
+
+import market.TickHandler;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Created by author.
+ * Quality filter of raw ticks. Bad ticks of the feeds (zero or negative prices, crossed quotes, several quotes with the
+ * same timestamp and spikes) create false directional changes, so they should be removed before DcOS sees them. The
+ * filter keeps O(1) state (the latest accepted tick, the tick held back and a possible pending spike) and allocates
+ * nothing per tick. One instance belongs to one instrument and one thread.
+ *
+ * The rules:
+ *  - non-positive prices: bid <= 0 or ask <= 0, always rejected;
+ *  - crossed quotes: bid > ask, rejected or repaired by swapping bid and ask (see setRepairCrossed);
+ *  - duplicate timestamps: of several quotes with the same time only the last one is kept (see setKeepLastOfTime), so
+ *  a tick is held back until a tick with another time comes and flush() gives the last one at the end of the data;
+ *  without this rule only exact repeats (the same time, bid and ask as the previous accepted tick) are rejected;
+ *  - spikes (off by default, see setSpikeFilter): the mid price jumps by more than maxJump (relative) from the previous
+ *  accepted mid within maxGap milliseconds. A spike is rejected, but if the next tick confirms the new level (it is
+ *  within maxJump from the rejected one) the level is accepted, so real jumps are not lost.
+ *
+ * The filter can be set into a TickParser (setFilter), then it works inside the parsing loop, or used as a decorator
+ * of a TickHandler (wrap). Its state (the latest tick, the tick held back and the counters) can be saved to a
+ * Checkpoint, the settings are not saved.
+ */
+public class TickFilter implements Checkpointable {
+
+    private boolean repairCrossed = true;
+    private boolean keepLastOfTime = true;
+    private double maxJump; // 0 if the spike filter is off
+    private long maxGap;
+    private long bid, ask, time; // the latest accepted (and maybe repaired) tick
+    private boolean hasPrevious;
+    private long heldBid, heldAsk, heldTime; // the latest quote of its time, not checked for spikes yet
+    private boolean hasHeld;
+    private double pendingSpikeMid; // mid of the latest rejected spike, 0 if none
+    private long numAccepted, numNonPositive, numCrossed, numRepaired, numDuplicates, numSpikes;
+
+    public TickFilter(){
+    }
+
+    /**
+     * Creates a filter with the same settings and a fresh state, for example for another thread.
+     */
+    public TickFilter(TickFilter other){
+        this.repairCrossed = other.repairCrossed;
+        this.keepLastOfTime = other.keepLastOfTime;
+        this.maxJump = other.maxJump;
+        this.maxGap = other.maxGap;
+    }
+
+    /**
+     * @param repairCrossed true to swap bid and ask of crossed quotes, false to reject them
+     */
+    public TickFilter setRepairCrossed(boolean repairCrossed){
+        this.repairCrossed = repairCrossed;
+        return this;
+    }
+
+    /**
+     * @param keepLastOfTime true to keep only the last of several quotes with the same time (the tick is then given one
+     *                       tick later, see flush), false to reject only exact repeats of the previous tick
+     */
+    public TickFilter setKeepLastOfTime(boolean keepLastOfTime){
+        this.keepLastOfTime = keepLastOfTime;
+        return this;
+    }
+
+    /**
+     * @param maxJump is the largest relative move of the mid price between two ticks which is not a spike, for example
+     *                0.01. 0 switches the spike filter off
+     * @param maxGap is the largest time (in milliseconds) between two ticks for which a jump is checked, jumps after
+     *               longer gaps (weekends, for example) are always accepted
+     */
+    public TickFilter setSpikeFilter(double maxJump, long maxGap){
+        this.maxJump = maxJump;
+        this.maxGap = maxGap;
+        return this;
+    }
+
+    /**
+     * @return the settings of the filter as text, for example for a key of a cache of results computed from the
+     * filtered ticks
+     */
+    public String getSettings(){
+        return "repairCrossed=" + repairCrossed + ",keepLastOfTime=" + keepLastOfTime + ",maxJump=" + maxJump + ",maxGap=" + maxGap;
+    }
+
+    /**
+     * Checks a new tick. If a tick is accepted, its (maybe repaired) values are given by getBid(), getAsk() and
+     * getTime(). With setKeepLastOfTime(true) (the default) the accepted tick is the previous quote, which turned out
+     * to be the last one of its time, and the new one is held back till the next call or flush().
+     * @return false if no tick is accepted
+     */
+    public boolean accept(long newBid, long newAsk, long newTime){
+        if (newBid <= 0 || newAsk <= 0){
+            numNonPositive++;
+            return false;
+        }
+        if (newBid > newAsk){
+            if (!repairCrossed){
+                numCrossed++;
+                return false;
+            }
+            long swap = newBid;
+            newBid = newAsk;
+            newAsk = swap;
+            numRepaired++;
+        }
+        if (!keepLastOfTime){
+            return release(newBid, newAsk, newTime);
+        }
+        if (hasHeld && newTime == heldTime){ // a newer quote of the same time replaces the held one
+            numDuplicates++;
+            heldBid = newBid;
+            heldAsk = newAsk;
+            return false;
+        }
+        boolean accepted = hasHeld && release(heldBid, heldAsk, heldTime);
+        heldBid = newBid;
+        heldAsk = newAsk;
+        heldTime = newTime;
+        hasHeld = true;
+        return accepted;
+    }
+
+    /**
+     * Checks the tick held back at the end of the data (of a file, for example). If it is accepted, its values are
+     * given by getBid(), getAsk() and getTime(). TickParser.parse calls it at the end of the stream.
+     * @return false if there is no tick held back or it is rejected
+     */
+    public boolean flush(){
+        if (!hasHeld){
+            return false;
+        }
+        hasHeld = false;
+        return release(heldBid, heldAsk, heldTime);
+    }
+
+    /**
+     * Checks a tick for repeats and spikes and makes it the latest accepted one if it passes.
+     */
+    private boolean release(long newBid, long newAsk, long newTime){
+        if (hasPrevious){
+            if (newTime == time && newBid == bid && newAsk == ask){
+                numDuplicates++;
+                return false;
+            }
+            if (maxJump > 0 && newTime - time <= maxGap){
+                double mid = (newBid + newAsk) / 2.0;
+                double previousMid = (bid + ask) / 2.0;
+                if (Math.abs(mid - previousMid) > maxJump * previousMid){
+                    boolean confirmed = pendingSpikeMid > 0 && Math.abs(mid - pendingSpikeMid) <= maxJump * pendingSpikeMid;
+                    if (!confirmed){
+                        pendingSpikeMid = mid;
+                        numSpikes++;
+                        return false;
+                    }
+                }
+            }
+        }
+        pendingSpikeMid = 0;
+        bid = newBid;
+        ask = newAsk;
+        time = newTime;
+        hasPrevious = true;
+        numAccepted++;
+        return true;
+    }
+
+    /**
+     * @return a handler which passes only the accepted (and maybe repaired) ticks to the given one. At the end of the
+     * data the held tick should be passed by flush(next)
+     */
+    public TickHandler wrap(TickHandler next){
+        return (newBid, newAsk, newTime) -> {
+            if (accept(newBid, newAsk, newTime)){
+                next.onTick(bid, ask, time);
+            }
+        };
+    }
+
+    /**
+     * Passes the tick held back to the handler if it is accepted, see flush().
+     */
+    public void flush(TickHandler next){
+        if (flush()){
+            next.onTick(bid, ask, time);
+        }
+    }
+
+    /**
+     * Saves the latest accepted tick, the tick held back, the pending spike and the counters.
+     */
+    public void writeState(DataOutput out) throws IOException {
+        out.writeBoolean(hasPrevious);
+        out.writeLong(bid);
+        out.writeLong(ask);
+        out.writeLong(time);
+        out.writeBoolean(hasHeld);
+        out.writeLong(heldBid);
+        out.writeLong(heldAsk);
+        out.writeLong(heldTime);
+        out.writeDouble(pendingSpikeMid);
+        Checkpoint.writeLongs(out, new long[]{numAccepted, numNonPositive, numCrossed, numRepaired, numDuplicates, numSpikes});
+    }
+
+    public void readState(DataInput in) throws IOException {
+        hasPrevious = in.readBoolean();
+        bid = in.readLong();
+        ask = in.readLong();
+        time = in.readLong();
+        hasHeld = in.readBoolean();
+        heldBid = in.readLong();
+        heldAsk = in.readLong();
+        heldTime = in.readLong();
+        pendingSpikeMid = in.readDouble();
+        long[] counters = new long[6];
+        Checkpoint.readLongs(in, counters);
+        numAccepted = counters[0];
+        numNonPositive = counters[1];
+        numCrossed = counters[2];
+        numRepaired = counters[3];
+        numDuplicates = counters[4];
+        numSpikes = counters[5];
+    }
+
+    /**
+     * @return number of rejected ticks
+     */
+    public long getNumRejected(){
+        return numNonPositive + numCrossed + numDuplicates + numSpikes;
+    }
+
+    public long getBid() {
+        return bid;
+    }
+
+    public long getAsk() {
+        return ask;
+    }
+
+    public long getTime() {
+        return time;
+    }
+
+    public long getNumAccepted() {
+        return numAccepted;
+    }
+
+    public long getNumNonPositive() {
+        return numNonPositive;
+    }
+
+    public long getNumCrossed() {
+        return numCrossed;
+    }
+
+    public long getNumRepaired() {
+        return numRepaired;
+    }
+
+    public long getNumDuplicates() {
+        return numDuplicates;
+    }
+
+    public long getNumSpikes() {
+        return numSpikes;
+    }
+}
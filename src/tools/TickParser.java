@@ -0,0 +1,379 @@
+package tools;
+
+import market.Price;
+import market.TickHandler;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Created by author.
+ * Parser of tick CSV lines which works directly on raw bytes. It understands the same lines and takes the same
+ * arguments as Tools.priceLineToPrice, but it does not create Strings, arrays or Price objects for a line.
+ *
+ * Prices are converted from their decimal text straight into scaled longs ("1.23456" with nDecimals = 5 gives 123456)
+ * without passing through double, so there are no rounding errors like (long) (1.1 * 100000) = 109999. If a price has
+ * more decimals than nDecimals, the extra digits are cut off.
+ *
+ * One instance should be used by one thread only.
+ */
+public class TickParser {
+
+    public static final long INVALID = Long.MIN_VALUE; // returned by parseScaled for a malformed number
+
+    private final byte delimiter;
+    private final int nDecimals;
+    private final String dateFormat;
+    private final TimestampDecoder timestampDecoder; // null if the time is given in seconds
+    private final int askIndex, bidIndex, timeIndex;
+    private final int lastIndex;
+    private long bid, ask, time; // values of the latest parsed line
+    private long numSkipped; // lines which could not be parsed by parse(InputStream...)
+    private long lineEnd; // offset in the stream of parse(InputStream...) after the line being parsed
+    private TickFilter filter; // null if the ticks are not filtered
+
+    /**
+     * The arguments are the same as in Tools.priceLineToPrice.
+     * @param delimiter is the delimiter of the fields, must be one character
+     * @param nDecimals is how many numbers a price has after the point
+     * @param dateFormat is the date format if any. Otherwise, one should write "" and the time is supposed to be in sec.
+     * @param askIndex index of the ask price in a line
+     * @param bidIndex index of the bid price in a line
+     * @param timeIndex index of the time in a line
+     */
+    public TickParser(String delimiter, int nDecimals, String dateFormat, int askIndex, int bidIndex, int timeIndex){
+        if (delimiter.length() != 1){
+            throw new IllegalArgumentException("The delimiter should be one character: \"" + delimiter + "\"");
+        }
+        this.delimiter = (byte) delimiter.charAt(0);
+        this.nDecimals = nDecimals;
+        this.dateFormat = dateFormat;
+        this.timestampDecoder = dateFormat.equals("") ? null : Tools.getTimestampDecoder(dateFormat);
+        this.askIndex = askIndex;
+        this.bidIndex = bidIndex;
+        this.timeIndex = timeIndex;
+        this.lastIndex = Math.max(timeIndex, Math.max(askIndex, bidIndex));
+    }
+
+    /**
+     * Creates a parser with the same settings, for example for another thread.
+     */
+    public TickParser(TickParser other){
+        this.delimiter = other.delimiter;
+        this.nDecimals = other.nDecimals;
+        this.dateFormat = other.dateFormat;
+        this.timestampDecoder = other.timestampDecoder; // thread-safe, can be shared
+        this.askIndex = other.askIndex;
+        this.bidIndex = other.bidIndex;
+        this.timeIndex = other.timeIndex;
+        this.lastIndex = other.lastIndex;
+        this.filter = other.filter == null ? null : new TickFilter(other.filter); // the same rules, own state
+    }
+
+    /**
+     * Parses one line given as a range of bytes (without the line break).
+     * @return false if the line is malformed (a header, for example). The values of the previous line are kept then.
+     */
+    public boolean parse(byte[] buffer, int from, int to){
+        int askFrom = -1, askTo = -1, bidFrom = -1, bidTo = -1, timeFrom = -1, timeTo = -1;
+        int field = 0;
+        int fieldFrom = from;
+        for (int i = from; i <= to && field <= lastIndex; i++){
+            if (i == to || buffer[i] == delimiter){
+                if (field == askIndex){
+                    askFrom = fieldFrom;
+                    askTo = i;
+                }
+                if (field == bidIndex){
+                    bidFrom = fieldFrom;
+                    bidTo = i;
+                }
+                if (field == timeIndex){
+                    timeFrom = fieldFrom;
+                    timeTo = i;
+                }
+                field++;
+                fieldFrom = i + 1;
+            }
+        }
+        if (field <= lastIndex){
+            return false;
+        }
+        long newAsk = parseScaled(buffer, askFrom, askTo, nDecimals);
+        long newBid = parseScaled(buffer, bidFrom, bidTo, nDecimals);
+        if (newAsk == INVALID || newBid == INVALID){
+            return false;
+        }
+        long newTime = parseTime(buffer, timeFrom, timeTo);
+        if (newTime == INVALID){
+            return false;
+        }
+        ask = newAsk;
+        bid = newBid;
+        time = newTime;
+        return true;
+    }
+
+    private long parseTime(byte[] buffer, int from, int to){
+        if (timestampDecoder == null){
+            long seconds = parseScaled(buffer, from, to, 0);
+            return seconds == INVALID ? INVALID : seconds * 1000L;
+        }
+        return timestampDecoder.decode(buffer, from, to);
+    }
+
+    /**
+     * Reads all lines of the stream and passes every parsed tick to the handler. Lines which cannot be parsed (the
+     * header, empty lines...) are skipped and counted, see getNumSkipped(). If a filter is set, only the accepted ticks
+     * are passed to the handler, the rejected ones are counted by the filter.
+     * @param in is the input stream, it is not closed by the method
+     * @param handler receives the ticks
+     * @return number of parsed ticks
+     */
+    public long parse(InputStream in, TickHandler handler) throws IOException {
+        return parse(in, handler, Long.MIN_VALUE, Long.MAX_VALUE);
+    }
+
+    /**
+     * The same as parse(in, handler), but only the ticks with fromTime <= time < toTime are passed to the handler. The
+     * ticks of the stream are supposed to be ordered by time, so the reading stops at the first tick after the range.
+     * While the handler runs, getLineEnd() gives the offset in the stream right after the line being parsed.
+     * @return number of ticks passed to the handler
+     */
+    public long parse(InputStream in, TickHandler handler, long fromTime, long toTime) throws IOException {
+        byte[] buffer = new byte[1 << 16];
+        int length = 0; // number of bytes in the buffer
+        int lineStart = 0;
+        long bufferOffset = 0; // offset in the stream of buffer[0]
+        long numTicks = 0;
+        numSkipped = 0;
+        lineEnd = 0;
+        while (true){
+            if (lineStart > 0){ // move the incomplete line to the beginning of the buffer
+                System.arraycopy(buffer, lineStart, buffer, 0, length - lineStart);
+                length -= lineStart;
+                bufferOffset += lineStart;
+                lineStart = 0;
+            }
+            if (length == buffer.length){ // a very long line
+                buffer = Arrays.copyOf(buffer, buffer.length * 2);
+            }
+            int read = in.read(buffer, length, buffer.length - length);
+            if (read < 0){
+                break;
+            }
+            int scanFrom = length;
+            length += read;
+            for (int i = scanFrom; i < length; i++){
+                if (buffer[i] == '\n'){
+                    lineEnd = bufferOffset + i + 1;
+                    int parsed = parseLine(buffer, lineStart, i, handler, fromTime, toTime);
+                    if (parsed < 0){
+                        return numTicks + flush(handler);
+                    }
+                    numTicks += parsed;
+                    lineStart = i + 1;
+                }
+            }
+        }
+        if (lineStart < length){ // the last line without a line break
+            lineEnd = bufferOffset + length;
+            numTicks += Math.max(0, parseLine(buffer, lineStart, length, handler, fromTime, toTime));
+        }
+        return numTicks + flush(handler);
+    }
+
+    /**
+     * Passes the tick held back by the filter (see TickFilter.flush) to the handler. parse calls it at the end of the
+     * stream, after parseLines it should be called by hand once the last range of the data is parsed.
+     * @return 1 if a tick was passed to the handler, 0 otherwise
+     */
+    public int flush(TickHandler handler){
+        if (filter != null && filter.flush()){
+            handler.onTick(filter.getBid(), filter.getAsk(), filter.getTime());
+            return 1;
+        }
+        return 0;
+    }
+
+    /**
+     * Parses all lines of a range of bytes, for example a chunk of a memory-mapped file. The last line may have no line
+     * break. Lines which cannot be parsed are skipped and added to getNumSkipped(). The filter keeps its state between
+     * the calls, so consecutive ranges are filtered as one stream; see flush() for the end of the data.
+     * @param handler receives the ticks
+     * @return number of parsed ticks
+     */
+    public int parseLines(byte[] buffer, int from, int to, TickHandler handler){
+        int numTicks = 0;
+        int lineStart = from;
+        for (int i = from; i < to; i++){
+            if (buffer[i] == '\n'){
+                numTicks += parseLine(buffer, lineStart, i, handler);
+                lineStart = i + 1;
+            }
+        }
+        if (lineStart < to){
+            numTicks += parseLine(buffer, lineStart, to, handler);
+        }
+        return numTicks;
+    }
+
+    private int parseLine(byte[] buffer, int from, int to, TickHandler handler){
+        return parseLine(buffer, from, to, handler, Long.MIN_VALUE, Long.MAX_VALUE);
+    }
+
+    /**
+     * @return 1 if the tick was passed to the handler, 0 if the line was skipped, -1 if the tick is after the range
+     */
+    private int parseLine(byte[] buffer, int from, int to, TickHandler handler, long fromTime, long toTime){
+        if (to > from && buffer[to - 1] == '\r'){
+            to--;
+        }
+        if (parse(buffer, from, to)){
+            if (time >= toTime){
+                return -1;
+            }
+            if (time < fromTime){
+                return 0;
+            }
+            if (filter == null){
+                handler.onTick(bid, ask, time);
+            } else if (filter.accept(bid, ask, time)){
+                handler.onTick(filter.getBid(), filter.getAsk(), filter.getTime());
+            } else {
+                return 0;
+            }
+            return 1;
+        }
+        numSkipped++;
+        return 0;
+    }
+
+    /**
+     * Converts a decimal number written in bytes into a long scaled by 10^nDecimals. Spaces around the number are
+     * ignored, decimals after the nDecimals-th one are cut off.
+     * @return the scaled value or INVALID if the bytes are not a decimal number
+     */
+    public static long parseScaled(byte[] buffer, int from, int to, int nDecimals){
+        while (from < to && buffer[from] == ' '){
+            from++;
+        }
+        while (to > from && buffer[to - 1] == ' '){
+            to--;
+        }
+        int i = from;
+        boolean negative = false;
+        if (i < to && (buffer[i] == '-' || buffer[i] == '+')){
+            negative = buffer[i] == '-';
+            i++;
+        }
+        long value = 0;
+        int numDigits = 0;
+        while (i < to && buffer[i] >= '0' && buffer[i] <= '9'){
+            value = value * 10 + (buffer[i] - '0');
+            numDigits++;
+            i++;
+        }
+        int numDecimals = 0;
+        if (i < to && buffer[i] == '.'){
+            i++;
+            while (i < to && buffer[i] >= '0' && buffer[i] <= '9'){
+                if (numDecimals < nDecimals){
+                    value = value * 10 + (buffer[i] - '0');
+                    numDecimals++;
+                }
+                numDigits++;
+                i++;
+            }
+        }
+        if (numDigits == 0 || i != to){
+            return INVALID;
+        }
+        for (; numDecimals < nDecimals; numDecimals++){
+            value *= 10;
+        }
+        return negative ? -value : value;
+    }
+
+    /**
+     * The same as parseScaled for bytes, but for a String.
+     * @throws NumberFormatException if the string is not a decimal number
+     */
+    public static long parseScaled(String number, int nDecimals){
+        byte[] bytes = number.getBytes(StandardCharsets.US_ASCII);
+        long value = parseScaled(bytes, 0, bytes.length, nDecimals);
+        if (value == INVALID){
+            throw new NumberFormatException("Not a decimal number: \"" + number + "\"");
+        }
+        return value;
+    }
+
+    /**
+     * Writes the values of the latest parsed line into the given instance.
+     * @param reuse is an instance which is reused for every tick
+     * @return the same instance
+     */
+    public Price toPrice(Price reuse){
+        reuse.set(bid, ask, time, nDecimals);
+        return reuse;
+    }
+
+    public long getBid() {
+        return bid;
+    }
+
+    public long getAsk() {
+        return ask;
+    }
+
+    public long getTime() {
+        return time;
+    }
+
+    public int getnDecimals() {
+        return nDecimals;
+    }
+
+    /**
+     * @return the settings which decide what ticks the parser gives (the layout of the lines, the number of decimals,
+     * the time zone of the timestamps and the settings of the filter) as text, for example for a key of a cache of
+     * results computed from the ticks
+     */
+    public String getSettings(){
+        return "delimiter=" + (char) delimiter + ",nDecimals=" + nDecimals + ",dateFormat=" + dateFormat
+                + ",zone=" + (timestampDecoder == null ? "none" : timestampDecoder.getZone().getId())
+                + ",ask=" + askIndex + ",bid=" + bidIndex + ",time=" + timeIndex
+                + ",filter=" + (filter == null ? "none" : filter.getSettings());
+    }
+
+    /**
+     * Sets a quality filter which checks every parsed tick before it is passed to a handler, so the bad ticks are
+     * removed in the same pass. A copy of the parser gets a copy of the filter with its own state.
+     * @param filter is the filter or null to pass all ticks
+     * @return this parser
+     */
+    public TickParser setFilter(TickFilter filter){
+        this.filter = filter;
+        return this;
+    }
+
+    public TickFilter getFilter() {
+        return filter;
+    }
+
+    /**
+     * @return the offset (in bytes from the beginning of the stream given to parse) right after the line being parsed,
+     * so a run resumed from this offset goes on with the next line. If the parser has a filter, the tick given to the
+     * handler may come from an earlier line and the filter holds the one of this line (see TickFilter), so the state
+     * of the filter should be saved together with this offset
+     */
+    public long getLineEnd() {
+        return lineEnd;
+    }
+
+    public long getNumSkipped() {
+        return numSkipped;
+    }
+}
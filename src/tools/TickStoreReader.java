@@ -0,0 +1,171 @@
+package tools;
+
+import market.TickHandler;
+
+import java.io.*;
+
+/**
+ * Created by author.
+ * Streaming decoder of the binary tick store written by TickStoreWriter. Only one block is kept in memory, the ticks
+ * are given as primitives: one by one (next() and the getters), as columns for DcOS.runBatch (fill) or pushed to a
+ * TickHandler (read).
+ *
+ * Typical usage:
+ *  try (TickStoreReader reader = new TickStoreReader("EURUSD.dcts")) {
+ *      reader.read(dcOS::run);
+ *  }
+ */
+public class TickStoreReader implements Closeable {
+
+    private final DataInputStream in;
+    private final String instrument;
+    private final int nDecimals;
+    private final long numTicks, firstTime, lastTime;
+    private final int numBlocks;
+    private final byte[] blockBytes = new byte[TickStoreWriter.MAX_BLOCK_BYTES];
+    private int position; // position of the next varint in the current block
+    private int blockTicksLeft; // ticks of the current block which are not decoded yet
+    private boolean firstOfBlock;
+    private long bid, spread, time;
+    private long numRead; // ticks decoded so far
+
+    public TickStoreReader(String fileName) throws IOException {
+        this(new FileInputStream(fileName));
+    }
+
+    /**
+     * @param stream gives the bytes of a tick store, it is closed by close()
+     */
+    public TickStoreReader(InputStream stream) throws IOException {
+        in = new DataInputStream(new BufferedInputStream(stream, 1 << 16));
+        if (in.readInt() != TickStoreWriter.MAGIC){
+            in.close();
+            throw new IOException("Not a tick store");
+        }
+        int version = in.readInt();
+        if (version != TickStoreWriter.VERSION){
+            in.close();
+            throw new IOException("Unsupported version of the tick store: " + version);
+        }
+        instrument = in.readUTF();
+        nDecimals = in.readInt();
+        numTicks = in.readLong();
+        firstTime = in.readLong();
+        lastTime = in.readLong();
+        numBlocks = in.readInt();
+    }
+
+    /**
+     * Moves to the next tick.
+     * @return false if there are no ticks anymore
+     */
+    public boolean next() throws IOException {
+        if (blockTicksLeft == 0){
+            if (numRead == numTicks){
+                return false;
+            }
+            blockTicksLeft = in.readInt();
+            int length = in.readInt();
+            if (blockTicksLeft < 1 || blockTicksLeft > TickStoreWriter.BLOCK_SIZE || length > blockBytes.length){
+                throw new IOException("Corrupted block of the tick store after " + numRead + " ticks");
+            }
+            in.readFully(blockBytes, 0, length);
+            position = 0;
+            firstOfBlock = true;
+        }
+        if (firstOfBlock){
+            time = TickStoreWriter.unZigZag(nextVarLong());
+            bid = TickStoreWriter.unZigZag(nextVarLong());
+            spread = TickStoreWriter.unZigZag(nextVarLong());
+            firstOfBlock = false;
+        } else {
+            time += TickStoreWriter.unZigZag(nextVarLong());
+            bid += TickStoreWriter.unZigZag(nextVarLong());
+            spread += TickStoreWriter.unZigZag(nextVarLong());
+        }
+        blockTicksLeft--;
+        numRead++;
+        return true;
+    }
+
+    private long nextVarLong(){
+        long value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = blockBytes[position++];
+            value |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        } while (b < 0);
+        return value;
+    }
+
+    /**
+     * Fills columns with the next ticks, for example for DcOS.runBatch.
+     * @return number of ticks written, 0 if there are no ticks anymore
+     */
+    public int fill(long[] bids, long[] asks, long[] times, int maxTicks) throws IOException {
+        int n = 0;
+        while (n < maxTicks && next()){
+            bids[n] = bid;
+            asks[n] = bid + spread;
+            times[n] = time;
+            n++;
+        }
+        return n;
+    }
+
+    /**
+     * Passes all remaining ticks to the handler.
+     * @return number of ticks passed
+     */
+    public long read(TickHandler handler) throws IOException {
+        long n = 0;
+        while (next()){
+            handler.onTick(bid, bid + spread, time);
+            n++;
+        }
+        return n;
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+
+    public long getBid() {
+        return bid;
+    }
+
+    public long getAsk() {
+        return bid + spread;
+    }
+
+    public long getTime() {
+        return time;
+    }
+
+    public String getInstrument() {
+        return instrument;
+    }
+
+    public int getnDecimals() {
+        return nDecimals;
+    }
+
+    public long getNumTicks() {
+        return numTicks;
+    }
+
+    public long getFirstTime() {
+        return firstTime;
+    }
+
+    public long getLastTime() {
+        return lastTime;
+    }
+
+    public int getNumBlocks() {
+        return numBlocks;
+    }
+}
@@ -0,0 +1,172 @@
+package tools;
+
+import market.TickHandler;
+
+import java.io.*;
+
+/**
+ * Created by author.
+ * Writer of the binary tick store, a compact replacement of the CSV tick files which are reparsed for every
+ * experiment. The file consists of a header and of blocks of up to BLOCK_SIZE ticks:
+ *
+ *  header: MAGIC, VERSION, instrument (UTF), nDecimals (int), number of ticks (long), first time (long),
+ *          last time (long), number of blocks (int)
+ *  block:  number of ticks (int), number of bytes (int), bytes
+ *
+ * The first tick of a block is written as the zig-zag varints of time, bid and spread (ask - bid), every following
+ * tick as the zig-zag varints of the differences of the time, of the bid and of the spread with the previous tick.
+ * A typical tick takes 3 to 5 bytes instead of about 45 bytes of CSV. Every block can be decoded on its own.
+ *
+ * The writer is a TickHandler, so it can be fed directly by TickParser (see convert). The ticks are written into a
+ * temporary file next to the store; close() writes the counts and the time range of the header and gives the file its
+ * final name, discard() deletes it. So a store which exists is always complete, a failed conversion leaves nothing.
+ */
+public class TickStoreWriter implements TickHandler, Closeable {
+
+    static final int MAGIC = 0x44435453; // "DCTS"
+    static final int VERSION = 1;
+    static final int BLOCK_SIZE = 4096; // ticks per block
+    static final int MAX_BLOCK_BYTES = BLOCK_SIZE * 3 * 10; // a varint of a long takes at most 10 bytes
+
+    private final File file, tmpFile; // the store and the file it is written into
+    private final DataOutputStream out;
+    private final long countsOffset; // position of the number of ticks in the header
+    private final byte[] blockBytes = new byte[MAX_BLOCK_BYTES];
+    private int blockLength; // bytes of the current block
+    private int blockTicks; // ticks of the current block
+    private long prevBid, prevSpread, prevTime;
+    private long numTicks, firstTime, lastTime;
+    private int numBlocks;
+
+    /**
+     * @param fileName is the name of the file to create, it appears at close()
+     * @param instrument is the name of the instrument, for example "EURUSD"
+     * @param nDecimals is how many decimals the prices have (see Price)
+     */
+    public TickStoreWriter(String fileName, String instrument, int nDecimals) throws IOException {
+        this.file = new File(fileName);
+        this.tmpFile = new File(fileName + ".tmp");
+        out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile), 1 << 16));
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeUTF(instrument);
+        out.writeInt(nDecimals);
+        countsOffset = out.size();
+        out.writeLong(0); // number of ticks, first time, last time and number of blocks are written at close()
+        out.writeLong(0);
+        out.writeLong(0);
+        out.writeInt(0);
+    }
+
+    @Override
+    public void onTick(long bid, long ask, long time){
+        long spread = ask - bid;
+        if (blockTicks == 0){
+            blockLength = putVarLong(blockBytes, blockLength, zigZag(time));
+            blockLength = putVarLong(blockBytes, blockLength, zigZag(bid));
+            blockLength = putVarLong(blockBytes, blockLength, zigZag(spread));
+        } else {
+            blockLength = putVarLong(blockBytes, blockLength, zigZag(time - prevTime));
+            blockLength = putVarLong(blockBytes, blockLength, zigZag(bid - prevBid));
+            blockLength = putVarLong(blockBytes, blockLength, zigZag(spread - prevSpread));
+        }
+        prevTime = time;
+        prevBid = bid;
+        prevSpread = spread;
+        if (numTicks == 0){
+            firstTime = time;
+        }
+        lastTime = time;
+        numTicks++;
+        blockTicks++;
+        if (blockTicks == BLOCK_SIZE){
+            try {
+                writeBlock();
+            } catch (IOException ex){
+                throw new UncheckedIOException(ex);
+            }
+        }
+    }
+
+    private void writeBlock() throws IOException {
+        out.writeInt(blockTicks);
+        out.writeInt(blockLength);
+        out.write(blockBytes, 0, blockLength);
+        numBlocks++;
+        blockTicks = 0;
+        blockLength = 0;
+    }
+
+    /**
+     * Writes the last block, completes the header and gives the store its final name.
+     */
+    @Override
+    public void close() throws IOException {
+        if (blockTicks > 0){
+            writeBlock();
+        }
+        out.close();
+        try (RandomAccessFile raf = new RandomAccessFile(tmpFile, "rw")) {
+            raf.seek(countsOffset);
+            raf.writeLong(numTicks);
+            raf.writeLong(firstTime);
+            raf.writeLong(lastTime);
+            raf.writeInt(numBlocks);
+        }
+        Tools.replaceFile(tmpFile, file);
+    }
+
+    /**
+     * Deletes the incomplete store, for example when reading the ticks failed.
+     */
+    public void discard() throws IOException {
+        out.close();
+        tmpFile.delete();
+    }
+
+    /**
+     * Converts a CSV tick file into the binary tick store.
+     * @param csvFileName is the CSV file, any layout understood by Tools.priceLineToPrice, can be gzipped
+     * @param storeFileName is the file to create
+     * @param instrument is the name of the instrument
+     * @param parser describes the layout of the CSV lines, it is copied and not changed
+     * @return number of converted ticks
+     */
+    public static long convert(String csvFileName, String storeFileName, String instrument, TickParser parser) throws IOException {
+        TickStoreWriter writer = new TickStoreWriter(storeFileName, instrument, parser.getnDecimals());
+        long numConverted;
+        try (InputStream in = Tools.openTickStream(csvFileName)) {
+            numConverted = new TickParser(parser).parse(in, writer);
+        } catch (IOException | RuntimeException ex){
+            writer.discard();
+            throw ex;
+        }
+        writer.close();
+        return numConverted;
+    }
+
+    static long zigZag(long value){
+        return (value << 1) ^ (value >> 63);
+    }
+
+    static long unZigZag(long value){
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    /**
+     * Writes an unsigned varint (7 bits per byte, the highest bit shows that more bytes follow).
+     * @return position after the written bytes
+     */
+    static int putVarLong(byte[] buffer, int position, long value){
+        while ((value & ~0x7FL) != 0){
+            buffer[position++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        buffer[position++] = (byte) value;
+        return position;
+    }
+
+    public long getNumTicks() {
+        return numTicks;
+    }
+}
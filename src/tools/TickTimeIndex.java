@@ -0,0 +1,194 @@
+package tools;
+
+import market.TickHandler;
+
+import java.io.*;
+import java.util.Arrays;
+
+/**
+ * Created by author.
+ * Sparse index of a CSV tick file: for every period (one hour by default) which has ticks it keeps the time of the
+ * first tick of the period and the byte offset of its line. With it a reader can jump straight to a range of dates,
+ * for example one year of a five-year file, instead of parsing the file from the beginning.
+ *
+ * The index is kept next to the tick file (fileName + ".tix") together with the length and the modification time of
+ * the file; open() builds it at the first use and rebuilds it when the file changes. The ticks of the file are supposed
+ * to be ordered by time. Gzipped files cannot be indexed since there is no way to seek in them, build and read throw
+ * an IOException for them.
+ *
+ * Typical usage:
+ *  TickTimeIndex index = TickTimeIndex.open(fileName, parser, TickTimeIndex.HOUR);
+ *  index.read(fileName, parser, from, to, dcOS::run);
+ */
+public class TickTimeIndex {
+
+    public static final long HOUR = 3600000L;
+    public static final String EXTENSION = ".tix";
+    private static final int MAGIC = 0x44435449; // "DCTI"
+    private static final int VERSION = 1;
+
+    private final long fileLength, fileModified; // of the indexed file
+    private final long step; // length of a period in milliseconds
+    private final long[] times; // time of the first tick of every period with ticks
+    private final long[] offsets; // byte offset of the line of that tick
+
+    private TickTimeIndex(long fileLength, long fileModified, long step, long[] times, long[] offsets){
+        this.fileLength = fileLength;
+        this.fileModified = fileModified;
+        this.step = step;
+        this.times = times;
+        this.offsets = offsets;
+    }
+
+    /**
+     * Loads the index of the file or, if there is none or it is outdated, builds it and saves it next to the file.
+     * @param fileName is the CSV tick file
+     * @param parser describes the layout of the lines
+     * @param step is the length of a period in milliseconds, for example HOUR
+     */
+    public static TickTimeIndex open(String fileName, TickParser parser, long step) throws IOException {
+        File file = new File(fileName);
+        File indexFile = new File(fileName + EXTENSION);
+        if (indexFile.exists()){
+            TickTimeIndex index = load(indexFile.getPath());
+            if (index.fileLength == file.length() && index.fileModified == file.lastModified() && index.step == step){
+                return index;
+            }
+        }
+        TickTimeIndex index = build(fileName, parser, step);
+        index.save(indexFile.getPath());
+        return index;
+    }
+
+    /**
+     * Reads the whole file once and collects the offsets of the first ticks of the periods.
+     */
+    public static TickTimeIndex build(String fileName, TickParser parser, long step) throws IOException {
+        checkNotGzipped(fileName);
+        File file = new File(fileName);
+        long fileModified = file.lastModified();
+        TickParser lineParser = new TickParser(parser);
+        long[] times = new long[1024];
+        long[] offsets = new long[1024];
+        int numEntries = 0;
+        long lastPeriod = Long.MIN_VALUE;
+        try (InputStream in = new FileInputStream(file)) {
+            byte[] buffer = new byte[1 << 16];
+            long bufferOffset = 0; // offset in the file of buffer[0]
+            int length = 0;
+            int lineStart = 0;
+            boolean endOfFile = false;
+            while (!endOfFile){
+                if (lineStart > 0){
+                    System.arraycopy(buffer, lineStart, buffer, 0, length - lineStart);
+                    length -= lineStart;
+                    bufferOffset += lineStart;
+                    lineStart = 0;
+                }
+                if (length == buffer.length){
+                    buffer = Arrays.copyOf(buffer, buffer.length * 2);
+                }
+                int scanFrom = length;
+                int read = in.read(buffer, length, buffer.length - length);
+                if (read >= 0){
+                    length += read;
+                } else {
+                    endOfFile = true;
+                    if (lineStart < length){ // the last line has no line break, add one
+                        buffer[length++] = '\n';
+                    }
+                }
+                for (int i = scanFrom; i < length; i++){
+                    if (buffer[i] == '\n'){
+                        int lineEnd = i > lineStart && buffer[i - 1] == '\r' ? i - 1 : i;
+                        if (lineParser.parse(buffer, lineStart, lineEnd)){
+                            long period = Math.floorDiv(lineParser.getTime(), step);
+                            if (period > lastPeriod){
+                                if (numEntries == times.length){
+                                    times = Arrays.copyOf(times, numEntries * 2);
+                                    offsets = Arrays.copyOf(offsets, numEntries * 2);
+                                }
+                                times[numEntries] = lineParser.getTime();
+                                offsets[numEntries] = bufferOffset + lineStart;
+                                numEntries++;
+                                lastPeriod = period;
+                            }
+                        }
+                        lineStart = i + 1;
+                    }
+                }
+            }
+        }
+        return new TickTimeIndex(file.length(), fileModified, step, Arrays.copyOf(times, numEntries), Arrays.copyOf(offsets, numEntries));
+    }
+
+    public void save(String indexFileName) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(indexFileName)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(fileLength);
+            out.writeLong(fileModified);
+            out.writeLong(step);
+            out.writeInt(times.length);
+            Checkpoint.writeLongs(out, times);
+            Checkpoint.writeLongs(out, offsets);
+        }
+    }
+
+    public static TickTimeIndex load(String indexFileName) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFileName)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION){
+                throw new IOException("Not a tick time index: " + indexFileName);
+            }
+            long fileLength = in.readLong();
+            long fileModified = in.readLong();
+            long step = in.readLong();
+            int numEntries = in.readInt();
+            long[] times = new long[numEntries];
+            long[] offsets = new long[numEntries];
+            Checkpoint.readLongs(in, times);
+            Checkpoint.readLongs(in, offsets);
+            return new TickTimeIndex(fileLength, fileModified, step, times, offsets);
+        }
+    }
+
+    /**
+     * @return offset of a line from which on all ticks with time >= fromTime can be found: the line of the latest
+     * indexed tick which is not after fromTime, or 0 if there is none
+     */
+    public long findOffset(long fromTime){
+        int position = Arrays.binarySearch(times, fromTime);
+        if (position < 0){
+            position = -position - 2; // the entry before the insertion point
+        }
+        return position < 0 ? 0 : offsets[position];
+    }
+
+    /**
+     * Passes the ticks with fromTime <= time < toTime to the handler. Only the lines from the period of fromTime to the
+     * first tick after the range are parsed.
+     * @param fileName is the indexed file
+     * @return number of ticks passed to the handler
+     */
+    public long read(String fileName, TickParser parser, long fromTime, long toTime, TickHandler handler) throws IOException {
+        checkNotGzipped(fileName);
+        try (FileInputStream file = new FileInputStream(fileName)) {
+            file.getChannel().position(findOffset(fromTime));
+            return parser.parse(new BufferedInputStream(file, 1 << 16), handler, fromTime, toTime);
+        }
+    }
+
+    private static void checkNotGzipped(String fileName) throws IOException {
+        if (fileName.endsWith(".gz")){
+            throw new IOException("A gzipped file cannot be indexed, there is no way to seek in it: " + fileName);
+        }
+    }
+
+    public int getNumEntries() {
+        return times.length;
+    }
+
+    public long getStep() {
+        return step;
+    }
+}
@@ -0,0 +1,165 @@
+package tools;
+
+import java.nio.charset.StandardCharsets;
+import java.time.DateTimeException;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.time.zone.ZoneRules;
+
+/**
+ * Created by author.
+ * Fast decoder of the fixed-width timestamps of the tick files, like "2016.01.04 13:23:54.012" (format
+ * "yyyy.MM.dd HH:mm:ss.SSS") or "2016.01.04 13:23:00" of 1-min bars ("yyyy.MM.dd HH:mm:ss"). Any separator of the date
+ * can be used instead of '.'.
+ *
+ * Ticks of one day share the date, so the decoder caches the epoch milliseconds of the beginning of the latest seen
+ * day and only computes the time within the day by arithmetic. A day with a DST transition is decoded by java.time,
+ * and the result is the same as the one of SimpleDateFormat (a wall time which happens twice is taken in the standard
+ * time). Formats of other shapes are decoded by java.time.
+ *
+ * By default the timestamps are in the default time zone of the JVM, as with Tools.stringToDate. An instance can be
+ * shared by parallel parser threads: the cache is an immutable object which is replaced as a whole.
+ */
+public class TimestampDecoder {
+
+    public static final long INVALID = Long.MIN_VALUE; // returned for a malformed timestamp
+
+    private final ZoneId zone;
+    private final ZoneRules rules;
+    private final boolean fastFormat; // true for "yyyy?MM?dd HH:mm:ss" and "yyyy?MM?dd HH:mm:ss.SSS"
+    private final boolean withMillis;
+    private final byte dateSeparator;
+    private final int length; // length of a timestamp of the fast format
+    private final DateTimeFormatter formatter; // for other formats
+    private volatile DayCache dayCache = new DayCache(-1, 0, false);
+
+    private static final class DayCache {
+        final int date; // yyyyMMdd
+        final long dayStart; // epoch milliseconds of the beginning of the day
+        final boolean noTransition; // false if the offset of the zone changes during the day
+
+        DayCache(int date, long dayStart, boolean noTransition){
+            this.date = date;
+            this.dayStart = dayStart;
+            this.noTransition = noTransition;
+        }
+    }
+
+    public TimestampDecoder(String dateFormat){
+        this(dateFormat, ZoneId.systemDefault());
+    }
+
+    /**
+     * @param dateFormat is the format in the SimpleDateFormat notation
+     * @param zone is the time zone of the timestamps
+     */
+    public TimestampDecoder(String dateFormat, ZoneId zone){
+        this.zone = zone;
+        this.rules = zone.getRules();
+        fastFormat = dateFormat.length() >= 19 && dateFormat.startsWith("yyyy") && dateFormat.startsWith("MM", 5)
+                && dateFormat.charAt(7) == dateFormat.charAt(4) && dateFormat.startsWith("dd HH:mm:ss", 8)
+                && (dateFormat.length() == 19 || dateFormat.substring(19).equals(".SSS"));
+        withMillis = dateFormat.length() > 19;
+        dateSeparator = (byte) dateFormat.charAt(Math.min(4, dateFormat.length() - 1));
+        length = dateFormat.length();
+        formatter = fastFormat ? null : DateTimeFormatter.ofPattern(dateFormat);
+    }
+
+    /**
+     * Decodes a timestamp given as a range of bytes.
+     * @return epoch milliseconds or INVALID
+     */
+    public long decode(byte[] buffer, int from, int to){
+        if (!fastFormat){
+            return decodeSlow(new String(buffer, from, to - from, StandardCharsets.US_ASCII));
+        }
+        if (to - from != length || buffer[from + 4] != dateSeparator || buffer[from + 7] != dateSeparator
+                || buffer[from + 10] != ' ' || buffer[from + 13] != ':' || buffer[from + 16] != ':'
+                || (withMillis && buffer[from + 19] != '.')){
+            return INVALID;
+        }
+        int year = digits(buffer, from, 4);
+        int month = digits(buffer, from + 5, 2);
+        int day = digits(buffer, from + 8, 2);
+        int hour = digits(buffer, from + 11, 2);
+        int minute = digits(buffer, from + 14, 2);
+        int second = digits(buffer, from + 17, 2);
+        int millis = withMillis ? digits(buffer, from + 20, 3) : 0;
+        if ((year | month | day | hour | minute | second | millis) < 0){
+            return INVALID;
+        }
+        return toEpochMillis(year, month, day, hour, minute, second, millis);
+    }
+
+    /**
+     * Decodes a timestamp given as a String.
+     * @return epoch milliseconds or INVALID
+     */
+    public long decode(String timestamp){
+        if (!fastFormat){
+            return decodeSlow(timestamp);
+        }
+        byte[] bytes = timestamp.getBytes(StandardCharsets.US_ASCII);
+        return decode(bytes, 0, bytes.length);
+    }
+
+    private long toEpochMillis(int year, int month, int day, int hour, int minute, int second, int millis){
+        int date = year * 10000 + month * 100 + day;
+        DayCache cache = dayCache;
+        if (cache.date != date){
+            try {
+                LocalDate localDate = LocalDate.of(year, month, day);
+                long dayStart = localDate.atStartOfDay(zone).toInstant().toEpochMilli();
+                long nextDayStart = localDate.plusDays(1).atStartOfDay(zone).toInstant().toEpochMilli();
+                boolean noTransition = nextDayStart - dayStart == 86400000L
+                        && rules.getOffset(Instant.ofEpochMilli(dayStart)).equals(rules.getOffset(Instant.ofEpochMilli(nextDayStart - 1)));
+                cache = new DayCache(date, dayStart, noTransition);
+                dayCache = cache;
+            } catch (DateTimeException ex){
+                return INVALID;
+            }
+        }
+        if (cache.noTransition && hour < 24 && minute < 60 && second < 60){
+            return cache.dayStart + hour * 3600000L + minute * 60000L + second * 1000L + millis;
+        }
+        try {
+            return LocalDateTime.of(year, month, day, hour, minute, second, millis * 1000000).atZone(zone)
+                    .withLaterOffsetAtOverlap().toInstant().toEpochMilli();
+        } catch (DateTimeException ex){
+            return INVALID;
+        }
+    }
+
+    private long decodeSlow(String timestamp){
+        try {
+            ZonedDateTime dateTime = LocalDateTime.parse(timestamp, formatter).atZone(zone).withLaterOffsetAtOverlap();
+            return dateTime.toInstant().toEpochMilli();
+        } catch (DateTimeParseException ex){
+            return INVALID;
+        }
+    }
+
+    /**
+     * @return the number written by the given count of digits or -1 if there is a non digit
+     */
+    private static int digits(byte[] buffer, int from, int count){
+        int value = 0;
+        for (int i = from; i < from + count; i++){
+            int digit = buffer[i] - '0';
+            if (digit < 0 || digit > 9){
+                return -1;
+            }
+            value = value * 10 + digit;
+        }
+        return value;
+    }
+
+    public ZoneId getZone() {
+        return zone;
+    }
+}
@@ -1,14 +1,16 @@
 package tools;
 
 import market.Price;
-import org.joda.time.DateTime;
-import org.joda.time.DateTimeConstants;
 
-import java.io.File;
+import java.io.*;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.text.DateFormat;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Created by author.
@@ -16,7 +18,7 @@ import java.util.*;
  */
 public class Tools {
 
-    private static long MLS_WEAK = 604800000L;
+    private static final Map<String, TimestampDecoder> timestampDecoders = new ConcurrentHashMap<>(); // by date format
 
     /**
      * The function checks if the certain directory exists and create it if it does not.
@@ -158,9 +160,47 @@ public class Tools {
         }
     }
 
+    /**
+     * The method gives a shared TimestampDecoder of the given format, it is created at the first call. Decoders are
+     * thread-safe, so the same instance can be used by all parsers.
+     * @param dateFormat is the date format, for example "yyyy.MM.dd HH:mm:ss.SSS"
+     * @return decoder of the timestamps in the default time zone
+     */
+    public static TimestampDecoder getTimestampDecoder(String dateFormat){
+        return timestampDecoders.computeIfAbsent(dateFormat, TimestampDecoder::new);
+    }
+
+    /**
+     * The method replaces a file by a new one written next to it (a temporary file), atomically if the file system
+     * supports it. Otherwise the file is replaced by a plain move, which leaves either the old or the new file on most
+     * file systems too.
+     * @param source is the new file
+     * @param target is the file to replace
+     */
+    public static void replaceFile(File source, File target) throws IOException {
+        try {
+            Files.move(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException ex){
+            Files.move(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * The method opens a tick file for reading. A file ending with ".gz" is decompressed on the fly, in parallel if it
+     * was written by ParallelGzip.compress (see ParallelGzip.open).
+     * @param fileName is the name of a CSV tick file, gzipped or not
+     * @return buffered stream of the text of the file
+     */
+    public static InputStream openTickStream(String fileName) throws IOException {
+        if (fileName.endsWith(".gz")){
+            return new BufferedInputStream(ParallelGzip.open(fileName, Runtime.getRuntime().availableProcessors()), 1 << 16);
+        }
+        return new BufferedInputStream(new FileInputStream(fileName), 1 << 16);
+    }
+
     /**
      * This method should convert a string of information about price to the proper Price format. IMPORTANT: by default
-     * the time of a price is supposed to be given in sec.
+     * the time of a price is supposed to be given in sec. For long files TickParser does the same much faster.
      * @param inputString is a string which describes a price. For example, "1.23,1.24,12213"
      * @param delimiter in the previous example the delimiter is ","
      * @param nDecimals is how many numbers a price has after the point. 2 in the example
@@ -172,13 +212,16 @@ public class Tools {
      */
     public static Price priceLineToPrice(String inputString, String delimiter, int nDecimals, String dateFormat, int askIndex, int bidIndex, int timeIndex){
         String[] priceInfo = inputString.split(delimiter);
-        long bid = (long) (Double.parseDouble(priceInfo[bidIndex]) * Math.pow(10, nDecimals));
-        long ask = (long) (Double.parseDouble(priceInfo[askIndex]) * Math.pow(10, nDecimals));
+        long bid = TickParser.parseScaled(priceInfo[bidIndex], nDecimals); // exact, no rounding through double
+        long ask = TickParser.parseScaled(priceInfo[askIndex], nDecimals);
         long time;
         if (dateFormat.equals("")){
             time = Long.parseLong(priceInfo[timeIndex]) * 1000L;
         } else {
-            time = stringToDate(priceInfo[timeIndex], dateFormat).getTime();
+            time = getTimestampDecoder(dateFormat).decode(priceInfo[timeIndex]);
+            if (time == TimestampDecoder.INVALID){ // lenient parsing as before, e.g. for extra text after the time
+                time = stringToDate(priceInfo[timeIndex], dateFormat).getTime();
+            }
         }
         return new Price(bid, ask, time, nDecimals);
     }
@@ -272,25 +315,12 @@ public class Tools {
      * @param time is the time in milliseconds
      * @param stampsBins is list of all timestamps labeling all bins of a week.
      * @return index (Id) of the correspondent bin.
+     * @deprecated every call builds a new WeekBinCalendar of the bins, which is slower than the old scan of the week.
+     * Keep a WeekBinCalendar of the bins and call its findBinId, it precomputes the weeks and the DST transitions once.
      */
+    @Deprecated
     public static int findBinId(long time, long[] stampsBins){
-        DateTime dcDateTime = new DateTime(time);
-        long mondayBeforeTime = dcDateTime.withDayOfWeek(DateTimeConstants.MONDAY).withTimeAtStartOfDay().getMillis();
-        long millsFromMonday = time - mondayBeforeTime - 1;
-        if (millsFromMonday > MLS_WEAK){
-            System.out.println("ATTENTION! Winter time");
-            millsFromMonday -= 3600000; // just remove an hour from the current time
-        }
-        int id = 0;
-        try {
-            while (stampsBins[id] < millsFromMonday){ // TODO: implement searching by division by 2 (should speed everything up)
-                id += 1;
-            }
-
-        } catch (Exception ex){
-            System.out.println("km");
-        }
-        return id;
+        return new WeekBinCalendar(stampsBins).findBinId(time);
     }
 
 
@@ -0,0 +1,299 @@
+package tools;
+
+import org.joda.time.DateTimeConstants;
+import org.joda.time.DateTimeZone;
+import org.joda.time.LocalDate;
+
+import java.util.Arrays;
+
+/**
+ * Created by author.
+ * Finds the bin of a week in which a given time occurs. A week begins on Monday 00:00 in the chosen time zone and the
+ * bins are defined by the local (wall clock) time from that moment, so in the weeks with a DST transition (167 or 169
+ * hours long) every bin still covers the same hours of the local day: the bins of the skipped hour get no time and the
+ * bins of the repeated hour get it twice (see getBinLength). The FX market is closed at the usual transitions (Sunday
+ * morning), so the repeated or skipped bins rarely have ticks.
+ *
+ * The beginnings of the weeks and the DST transitions of the time zone are precomputed into a table of pieces of
+ * constant offset, so the local time from Monday is a subtraction and finding the piece of a new time is a binary
+ * search. The table covers the range of dates given by precompute or grows by a year when a time is outside of it.
+ * For equal bins (timestamps (i + 1) * lenOfBin) the bin is found by a division, for other bins (theta time) by a binary
+ * search.
+ *
+ * An instance keeps the current piece, so it should be used by one thread only. Every analysis has its own one.
+ */
+public class WeekBinCalendar {
+
+    private static final long MLS_WEEK = 604800000L; // number of milliseconds in a week
+    private static final long MLS_YEAR = 31536000000L; // number of milliseconds in a year
+
+    private final DateTimeZone zone;
+    private final long[] upperBounds; // the running maximum of the timestamps of bins, null if there are no bins
+    private final long lenOfBin; // length of a bin if all bins are equal, otherwise 0
+    private long[] pieceStarts = new long[0]; // beginnings of the pieces: weeks and DST transitions, plus the end of the table
+    private long[] pieceBases = new long[0]; // local time from Monday of a time in piece i is time - pieceBases[i]
+    private boolean[] weekStarts = new boolean[0]; // true if piece i begins a week
+    private int numPieces;
+    private long currentStart = 1, currentEnd = 0, currentBase; // the current piece, empty at the beginning
+    private int currentPiece;
+    private int tableVersion; // changes when the table is rebuilt and the indexes of the pieces change
+
+    /**
+     * A calendar in the default time zone without bins, only for millisFromMonday.
+     */
+    public WeekBinCalendar(){
+        this(null, DateTimeZone.getDefault());
+    }
+
+    /**
+     * A calendar in the default time zone.
+     * @param stampsBins is list of all timestamps labeling all bins of a week (the end of every bin in milliseconds
+     *                   from Monday), the same as in Tools.findBinId
+     */
+    public WeekBinCalendar(long[] stampsBins){
+        this(stampsBins, DateTimeZone.getDefault());
+    }
+
+    /**
+     * @param stampsBins is list of all timestamps labeling all bins of a week, null for a calendar without bins
+     * @param zone is the time zone of the weeks, for example DateTimeZone.UTC or DateTimeZone.forID("America/New_York")
+     */
+    public WeekBinCalendar(long[] stampsBins, DateTimeZone zone){
+        this.zone = zone;
+        if (stampsBins == null){
+            this.upperBounds = null;
+            this.lenOfBin = 0;
+            return;
+        }
+        upperBounds = new long[stampsBins.length];
+        boolean equalBins = stampsBins.length > 0 && stampsBins[0] > 0;
+        long max = Long.MIN_VALUE;
+        for (int i = 0; i < stampsBins.length; i++){
+            max = Math.max(max, stampsBins[i]);
+            upperBounds[i] = max; // the first index with upperBounds[i] >= m is the first one with stampsBins[i] >= m
+            equalBins &= stampsBins[i] == (i + 1) * stampsBins[0];
+        }
+        lenOfBin = equalBins ? stampsBins[0] : 0;
+    }
+
+    /**
+     * Computes the weeks and the DST transitions between the two times, for example the first and the last tick of a
+     * data set. Without calling it the table begins with the week of the first time asked and grows by a year when
+     * needed.
+     */
+    public void precompute(long fromTime, long toTime){
+        if (numPieces > 0){
+            fromTime = Math.min(fromTime, pieceStarts[0]);
+            toTime = Math.max(toTime, pieceStarts[numPieces]);
+        }
+        LocalDate monday = new LocalDate(fromTime, zone).withDayOfWeek(DateTimeConstants.MONDAY);
+        long weekStart = monday.toDateTimeAtStartOfDay(zone).getMillis();
+        int numWeeks = (int) ((toTime - weekStart) / MLS_WEEK) + 2;
+        long[] starts = new long[4 * numWeeks + 1];
+        long[] bases = new long[4 * numWeeks + 1];
+        boolean[] firsts = new boolean[4 * numWeeks + 1];
+        int n = 0;
+        while (weekStart <= toTime){
+            LocalDate nextMonday = monday.plusWeeks(1);
+            long weekEnd = nextMonday.toDateTimeAtStartOfDay(zone).getMillis();
+            long localMonday = monday.toDateTimeAtStartOfDay(DateTimeZone.UTC).getMillis(); // Monday 00:00 as local millis
+            long pieceStart = weekStart;
+            while (pieceStart < weekEnd){
+                if (n + 1 == starts.length){
+                    starts = Arrays.copyOf(starts, 2 * n + 2);
+                    bases = Arrays.copyOf(bases, 2 * n + 2);
+                    firsts = Arrays.copyOf(firsts, 2 * n + 2);
+                }
+                starts[n] = pieceStart;
+                bases[n] = localMonday - zone.getOffset(pieceStart);
+                firsts[n] = pieceStart == weekStart;
+                n++;
+                long transition = zone.nextTransition(pieceStart);
+                pieceStart = transition > pieceStart && transition < weekEnd ? transition : weekEnd;
+            }
+            monday = nextMonday;
+            weekStart = weekEnd;
+        }
+        starts[n] = weekStart; // the end of the table
+        pieceStarts = starts;
+        pieceBases = bases;
+        weekStarts = firsts;
+        numPieces = n;
+        tableVersion++;
+        currentStart = 1;
+        currentEnd = 0;
+    }
+
+    /**
+     * Makes the given time the current piece.
+     */
+    private void findPiece(long time){
+        if (numPieces == 0){
+            precompute(time, time);
+        } else if (time < pieceStarts[0]){
+            precompute(time - MLS_YEAR, time);
+        } else if (time >= pieceStarts[numPieces]){
+            precompute(time, time + MLS_YEAR);
+        }
+        int position = Arrays.binarySearch(pieceStarts, 0, numPieces + 1, time);
+        if (position < 0){
+            position = -position - 2; // the piece which contains the time
+        }
+        currentStart = pieceStarts[position];
+        currentEnd = pieceStarts[position + 1];
+        currentBase = pieceBases[position];
+        currentPiece = position;
+    }
+
+    /**
+     * @return local time in milliseconds from the beginning of the week (Monday 00:00) minus 1, the value which is
+     * compared with the timestamps of bins
+     */
+    public long millisFromMonday(long time){
+        if (time < currentStart || time >= currentEnd){
+            findPiece(time);
+        }
+        return time - currentBase - 1;
+    }
+
+    /**
+     * @return index (Id) of the bin in which the given time occurs: the first bin with the timestamp not smaller than
+     * millisFromMonday(time), or the number of bins if there is no such bin
+     */
+    public int findBinId(long time){
+        if (upperBounds == null){
+            throw new IllegalStateException("The calendar has no bins");
+        }
+        long millsFromMonday = millisFromMonday(time);
+        if (lenOfBin > 0){
+            return (int) Math.min(Math.max(0, millsFromMonday - 1) / lenOfBin, upperBounds.length);
+        }
+        int low = 0, high = upperBounds.length; // the answer is in [low, high]
+        while (low < high){
+            int middle = (low + high) >>> 1;
+            if (upperBounds[middle] < millsFromMonday){
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * @return how many milliseconds of the week of the given time belong to the bin: the nominal length of the bin in
+     * most weeks, less or more if the bin contains the skipped or the repeated hour of a DST transition
+     */
+    public long getBinLength(long time, int binId){
+        if (upperBounds == null){
+            throw new IllegalStateException("The calendar has no bins");
+        }
+        long lower = binId == 0 ? 0 : upperBounds[binId - 1];
+        long upper = upperBounds[binId];
+        millisFromMonday(time);
+        int first = currentPiece;
+        while (!weekStarts[first]){
+            first--;
+        }
+        long length = 0;
+        for (int i = first; i < numPieces && (i == first || !weekStarts[i]); i++){
+            long wallFrom = pieceStarts[i] - pieceBases[i];
+            long wallTo = pieceStarts[i + 1] - pieceBases[i];
+            length += Math.max(0, Math.min(wallTo, upper) - Math.max(wallFrom, lower));
+        }
+        return length;
+    }
+
+    /**
+     * @return the real length of every bin averaged over the weeks from the one of fromTime to the one of toTime (the
+     * first and the last tick of a sample, for example). It is the nominal length of the bin unless the weeks contain a
+     * DST transition, then the bins of the skipped hour are shorter and the ones of the repeated hour longer (see
+     * getBinLength). The analyses divide by it instead of the nominal length, so such bins are not biased
+     */
+    public double[] getAverageBinLengths(long fromTime, long toTime){
+        if (upperBounds == null){
+            throw new IllegalStateException("The calendar has no bins");
+        }
+        precompute(fromTime, toTime); // the table covers both times, so the indexes of the pieces do not change below
+        int first = pieceOf(fromTime);
+        while (!weekStarts[first]){
+            first--;
+        }
+        int end = pieceOf(toTime) + 1;
+        while (end < numPieces && !weekStarts[end]){
+            end++;
+        }
+        double[] lengths = new double[upperBounds.length];
+        int numWeeks = 0;
+        for (int piece = first; piece < end; piece++){
+            if (weekStarts[piece]){
+                numWeeks++;
+            }
+            long wallFrom = pieceStarts[piece] - pieceBases[piece];
+            long wallTo = pieceStarts[piece + 1] - pieceBases[piece];
+            for (int bin = firstBinEndingAfter(wallFrom); bin < upperBounds.length; bin++){
+                long lower = bin == 0 ? 0 : upperBounds[bin - 1];
+                if (lower >= wallTo){
+                    break;
+                }
+                lengths[bin] += Math.max(0, Math.min(wallTo, upperBounds[bin]) - Math.max(wallFrom, lower));
+            }
+        }
+        for (int bin = 0; bin < lengths.length; bin++){
+            lengths[bin] /= numWeeks;
+        }
+        return lengths;
+    }
+
+    /**
+     * @return index of the first bin with the timestamp above the given local time from Monday
+     */
+    private int firstBinEndingAfter(long wallTime){
+        int low = 0, high = upperBounds.length;
+        while (low < high){
+            int middle = (low + high) >>> 1;
+            if (upperBounds[middle] <= wallTime){
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * @return index of the piece of constant offset which contains the time, the table is extended if needed
+     */
+    int pieceOf(long time){
+        millisFromMonday(time);
+        return currentPiece;
+    }
+
+    int getNumPieces() {
+        return numPieces;
+    }
+
+    long getPieceStart(int piece) {
+        return pieceStarts[piece];
+    }
+
+    long getPieceBase(int piece) {
+        return pieceBases[piece];
+    }
+
+    boolean isWeekStart(int piece) {
+        return weekStarts[piece];
+    }
+
+    int getTableVersion() {
+        return tableVersion;
+    }
+
+    public int getNumBins() {
+        return upperBounds == null ? 0 : upperBounds.length;
+    }
+
+    public DateTimeZone getZone() {
+        return zone;
+    }
+}